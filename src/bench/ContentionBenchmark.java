@@ -0,0 +1,80 @@
+package bench;
+
+import lockmgr.DeadlockException;
+import lockmgr.LockKey;
+import lockmgr.LockManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Contended lock requests: all threads lock one of a few rows, so that
+ * requests keep waiting for each other and locks are handed over through
+ * the wait queues. Run with -t to change the number of threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ContentionBenchmark {
+    @State(Scope.Benchmark)
+    public static class Shared {
+        /* number of rows the threads compete for */
+        @Param({"1", "4"})
+        int rows;
+
+        LockManager lm = new LockManager();
+
+        LockKey[] keys;
+
+        @Setup
+        public void setup() {
+            keys = new LockKey[rows];
+            for (int i = 0; i < rows; i++) {
+                keys[i] = LockKey.table("RMFlights").row(String.valueOf(347 + i));
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Trxn {
+        int xid;
+
+        int row;
+
+        @Setup
+        public void setup(ThreadParams params) {
+            xid = params.getThreadIndex() << 24;
+            row = params.getThreadIndex();
+        }
+    }
+
+    @Benchmark
+    public boolean write(Shared shared, Trxn trxn) throws DeadlockException {
+        int xid = trxn.xid++;
+        shared.lm.lock(xid, shared.keys[trxn.row++ % shared.rows], LockManager.WRITE);
+        return shared.lm.unlockAll(xid);
+    }
+
+    @Benchmark
+    public boolean readWrite(Shared shared, Trxn trxn) throws DeadlockException {
+        int xid = trxn.xid++;
+        int lockType = ((xid & 3) == 0) ? LockManager.WRITE : LockManager.READ;
+        shared.lm.lock(xid, shared.keys[trxn.row++ % shared.rows], lockType);
+        return shared.lm.unlockAll(xid);
+    }
+}
@@ -0,0 +1,43 @@
+package bench;
+
+import lockmgr.DeadlockException;
+import lockmgr.LockKey;
+import lockmgr.LockManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * READ to WRITE lock conversion, the read-then-update pattern of the
+ * workflow controller: a row is read-locked, then write-locked by the same
+ * transaction, which also converts its intention lock on the table.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConversionBenchmark {
+    LockManager lm = new LockManager();
+
+    LockKey key = LockKey.table("RMFlights").row("347");
+
+    int xid = 1;
+
+    @Benchmark
+    public boolean readThenWrite() throws DeadlockException {
+        int xid = this.xid++;
+        lm.lock(xid, key, LockManager.READ);
+        lm.lock(xid, key, LockManager.WRITE);
+        return lm.unlockAll(xid);
+    }
+}
@@ -0,0 +1,62 @@
+package bench;
+
+import lockmgr.DeadlockException;
+import lockmgr.LockKey;
+import lockmgr.LockManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deadlock detection latency: the time from a request that can never be
+ * granted to the DeadlockException reporting it, for a given deadlock
+ * timeout. The difference to the timeout is the detection overhead.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DeadlockBenchmark {
+    /* deadlock timeout in milliseconds */
+    @Param({"20"})
+    int timeout;
+
+    LockManager lm = new LockManager();
+
+    LockKey key = LockKey.table("RMRooms").row("Irvine");
+
+    int xid = 1;
+
+    @Setup
+    public void setup() {
+        LockManager.setDeadlockTimeout(timeout);
+    }
+
+    @Benchmark
+    public boolean detect() throws DeadlockException {
+        int xid = this.xid;
+        this.xid += 2;
+        lm.lock(xid, key, LockManager.WRITE);
+        boolean detected = false;
+        try {
+            lm.lock(xid + 1, key, LockManager.WRITE);
+        } catch (DeadlockException e) {
+            detected = true;
+        }
+        lm.unlockAll(xid + 1);
+        lm.unlockAll(xid);
+        return detected;
+    }
+}
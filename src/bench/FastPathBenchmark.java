@@ -0,0 +1,99 @@
+package bench;
+
+import lockmgr.DeadlockException;
+import lockmgr.LockKey;
+import lockmgr.LockManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uncontended lock requests: transactions that lock a single row and
+ * release it again, with no other transaction ever waiting for it. Reads
+ * share the same hot rows across all threads, writes use a row per thread.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FastPathBenchmark {
+    private static final int ROWS = 16;
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        LockManager lm = new LockManager();
+
+        LockKey[] rows = new LockKey[ROWS];
+
+        @Setup
+        public void setup() {
+            for (int i = 0; i < ROWS; i++) {
+                rows[i] = LockKey.table("RMFlights").row(String.valueOf(347 + i));
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Trxn {
+        int xid;
+
+        int row;
+
+        LockKey ownRow;
+
+        @Setup
+        public void setup(ThreadParams params) {
+            // disjoint xids per thread
+            xid = params.getThreadIndex() << 24;
+            ownRow = LockKey.table("RMCars").row(String.valueOf(params.getThreadIndex()));
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean read(Shared shared, Trxn trxn) throws DeadlockException {
+        return readRow(shared, trxn);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean read4(Shared shared, Trxn trxn) throws DeadlockException {
+        return readRow(shared, trxn);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean write(Shared shared, Trxn trxn) throws DeadlockException {
+        return writeRow(shared, trxn);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean write4(Shared shared, Trxn trxn) throws DeadlockException {
+        return writeRow(shared, trxn);
+    }
+
+    private static boolean readRow(Shared shared, Trxn trxn) throws DeadlockException {
+        int xid = trxn.xid++;
+        shared.lm.lock(xid, shared.rows[trxn.row++ & (ROWS - 1)], LockManager.READ);
+        return shared.lm.unlockAll(xid);
+    }
+
+    private static boolean writeRow(Shared shared, Trxn trxn) throws DeadlockException {
+        int xid = trxn.xid++;
+        shared.lm.lock(xid, trxn.ownRow, LockManager.WRITE);
+        return shared.lm.unlockAll(xid);
+    }
+}
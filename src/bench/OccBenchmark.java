@@ -0,0 +1,143 @@
+package bench;
+
+import lockmgr.DeadlockException;
+import lockmgr.LockManager;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+import transaction.RMTable;
+import transaction.entity.Flight;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-mostly transactions on the rows of RMFlights under strict 2PL and
+ * under optimistic concurrency control (see RMTable.validate()): every
+ * transaction reads a few flights, one in writeEvery also changes the
+ * price of one. The commits and aborts counters give the abort rate next
+ * to the throughput. Run with -t to change the number of threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class OccBenchmark {
+    /* rows read by every transaction */
+    static final int READS = 4;
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        @Param({"2pl", "occ"})
+        String concurrency;
+
+        /* number of flights the transactions use */
+        @Param({"16", "256"})
+        int rows;
+
+        /* one transaction in writeEvery writes */
+        @Param({"2", "8"})
+        int writeEvery;
+
+        LockManager lm = new LockManager();
+
+        RMTable committed;
+
+        @Setup
+        public void setup() {
+            // deadlocks of the 2PL transactions cost them a timeout
+            LockManager.setDeadlockTimeout(20);
+            committed = new RMTable("RMFlights", null, -1, lm);
+            for (int i = 0; i < rows; i++) {
+                committed.put(new Flight(String.valueOf(i), 100, 300));
+            }
+        }
+
+        // installs the price written by a transaction, as
+        // ResourceManagerImpl.commit() does
+        void commit(RMTable xtable, Flight written) {
+            synchronized (committed) {
+                if (written != null)
+                    committed.put(written);
+                committed.bumpVersions(xtable);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Trxn {
+        int xid;
+
+        Random random = new Random();
+
+        @Setup
+        public void setup(ThreadParams params) {
+            xid = params.getThreadIndex() << 24;
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Outcomes {
+        public long commits;
+
+        public long aborts;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            commits = 0;
+            aborts = 0;
+        }
+    }
+
+    @Benchmark
+    public int readMostly(Shared shared, Trxn trxn, Outcomes outcomes) {
+        int xid = trxn.xid++;
+        RMTable xtable = new RMTable("RMFlights", shared.committed, xid, shared.lm);
+        xtable.setOptimistic(shared.concurrency.equals("occ"));
+        int sum = 0;
+        boolean committed = false;
+        try {
+            for (int i = 0; i < READS; i++) {
+                String key = String.valueOf(trxn.random.nextInt(shared.rows));
+                xtable.lock(key, LockManager.READ);
+                sum += ((Flight) xtable.get(key)).getPrice();
+            }
+            Flight written = null;
+            if (xid % shared.writeEvery == 0) {
+                String key = String.valueOf(trxn.random.nextInt(shared.rows));
+                xtable.lock(key, LockManager.WRITE);
+                written = (Flight) xtable.get(key).clone();
+                written.setPrice(written.getPrice() + 1);
+                xtable.put(written);
+            }
+            if (xtable.validate()) {
+                shared.commit(xtable, written);
+                committed = true;
+            }
+        } catch (DeadlockException e) {
+            // aborted
+        } finally {
+            shared.lm.unlockAll(xid);
+        }
+        if (committed)
+            outcomes.commits++;
+        else
+            outcomes.aborts++;
+        return sum;
+    }
+}
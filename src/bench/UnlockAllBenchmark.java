@@ -0,0 +1,62 @@
+package bench;
+
+import lockmgr.DeadlockException;
+import lockmgr.LockKey;
+import lockmgr.LockManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * unlockAll() of a transaction holding many row locks. Lock escalation is
+ * switched off, so that the locks are released one by one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UnlockAllBenchmark {
+    @Param({"1000"})
+    int locks;
+
+    LockManager lm = new LockManager();
+
+    LockKey[] keys;
+
+    int xid = 1;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        LockManager.setEscalationThreshold(0);
+        keys = new LockKey[locks];
+        for (int i = 0; i < locks; i++) {
+            keys[i] = LockKey.table("RMCars").row(String.valueOf(i));
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() throws DeadlockException {
+        xid++;
+        for (int i = 0; i < locks; i++) {
+            lm.lock(xid, keys[i], LockManager.WRITE);
+        }
+    }
+
+    @Benchmark
+    public boolean unlockAll() {
+        return lm.unlockAll(xid);
+    }
+}
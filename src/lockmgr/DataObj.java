@@ -3,7 +3,7 @@ package lockmgr;
 public class DataObj extends TrxnObj {
     // The data members inherited are
     // XObj:: protected int xid;
-    // TrxnObj:: protected String strData;
+    // TrxnObj:: protected LockKey lockKey;
     // TrxnObj:: protected int lockType;
     // TrxnObj:: public static final int READ = 0;
     // TrxnObj:: public static final int WRITE = 1;
@@ -12,20 +12,20 @@ public class DataObj extends TrxnObj {
         super();
     }
 
-    DataObj(int xid, String strData, int lockType) {
-        super(xid, strData, lockType);
+    DataObj(int xid, LockKey lockKey, int lockType) {
+        super(xid, lockKey, lockType);
     }
 
     public int hashCode() {
-        return strData.hashCode();
+        return lockKey.hashCode();
     }
 
     public int key() {
-        return strData.hashCode();
+        return lockKey.hashCode();
     }
 
     public Object clone() {
-        DataObj d = new DataObj(this.xid, this.strData, this.lockType);
+        DataObj d = new DataObj(this.xid, this.lockKey, this.lockType);
         return d;
     }
 }
\ No newline at end of file
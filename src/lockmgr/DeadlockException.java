@@ -11,6 +11,12 @@ public class DeadlockException extends Exception {
         this.xid = xid;
     }
 
+    // for subclasses that report a lock request failing for other reasons
+    protected DeadlockException(String msg, int xid) {
+        super(msg);
+        this.xid = xid;
+    }
+
     int GetXId() {
         return xid;
     }
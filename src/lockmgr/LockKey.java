@@ -0,0 +1,141 @@
+package lockmgr;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Identifies a data item to be locked: either a whole table, or the row of
+ * a table with a given key. Table names are interned into one canonical
+ * LockKey per table, and the hash of every key is computed once when it is
+ * created, so that looking a LockKey up while locking neither builds nor
+ * hashes any string.
+ */
+public final class LockKey {
+    // table name -> the LockKey of the table
+    private static ConcurrentHashMap<String, LockKey> tableKeys = new ConcurrentHashMap<>();
+
+    private static int tableCount = 0;
+
+    protected final LockKey tableKey;
+
+    protected final String tableName;
+
+    protected final int tableId;
+
+    protected final Object key;
+
+    protected final long hash;
+
+    private LockKey(String tableName, int tableId) {
+        this.tableKey = this;
+        this.tableName = tableName;
+        this.tableId = tableId;
+        this.key = null;
+        this.hash = mix((long) tableId << 32);
+    }
+
+    private LockKey(LockKey tableKey, Object key) {
+        this.tableKey = tableKey;
+        this.tableName = tableKey.tableName;
+        this.tableId = tableKey.tableId;
+        this.key = key;
+        this.hash = mix(((long) tableId << 32) | (key.hashCode() & 0xffffffffL));
+    }
+
+    /**
+     * Returns the LockKey of the table <tt>tableName</tt>; the same object is
+     * returned for the same table name.
+     */
+    public static LockKey table(String tableName) {
+        LockKey tableKey = tableKeys.get(tableName);
+        if (tableKey == null) {
+            synchronized (tableKeys) {
+                tableKey = tableKeys.get(tableName);
+                if (tableKey == null) {
+                    tableKey = new LockKey(tableName, tableCount++);
+                    tableKeys.put(tableName, tableKey);
+                }
+            }
+        }
+        return tableKey;
+    }
+
+    /**
+     * Returns the LockKey of the row of this table with the given key. The
+     * key must not change while it is locked.
+     */
+    public LockKey row(Object key) {
+        if (key == null) {
+            throw new IllegalArgumentException("null row key");
+        }
+        return new LockKey(this.tableKey, key);
+    }
+
+    /**
+     * Returns the LockKey of a data item named "table:key" (a row), or of a
+     * data item whose name has no table part (a table).
+     */
+    public static LockKey of(String strData) {
+        int index = strData.indexOf(':');
+        if (index <= 0) {
+            return table(strData);
+        }
+        return table(strData.substring(0, index)).row(strData.substring(index + 1));
+    }
+
+    public boolean isRow() {
+        return this.key != null;
+    }
+
+    // returns true if this is a row of the table tableKey
+    boolean isRowOf(LockKey tableKey) {
+        return this.key != null && this.tableKey == tableKey;
+    }
+
+    public LockKey getTableKey() {
+        return this.tableKey;
+    }
+
+    public String getTableName() {
+        return this.tableName;
+    }
+
+    public Object getKey() {
+        return this.key;
+    }
+
+    public long getHash() {
+        return this.hash;
+    }
+
+    public int hashCode() {
+        return (int) (this.hash ^ (this.hash >>> 32));
+    }
+
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof LockKey)) {
+            return false;
+        }
+        LockKey k = (LockKey) o;
+        return k.hash == this.hash && k.tableKey == this.tableKey && k.key != null && k.key.equals(this.key);
+    }
+
+    public String toString() {
+        if (this.key == null) {
+            return this.tableName;
+        }
+        return this.tableName + ":" + this.key;
+    }
+
+    // 64-bit finalizer of MurmurHash3
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9a34b2bf0ebL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -1,7 +1,20 @@
 package lockmgr;
 
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.ListIterator;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Implements a Lock Manager. Each Resource Manager creates one instance of this
@@ -13,16 +26,118 @@ public class LockManager {
 
     public static final int WRITE = 1;
 
+    /*
+     * Table-level intention modes. Before a row of a table (see LockKey) is
+     * locked the transaction takes the matching intention lock on the table,
+     * so that READ/WRITE locks on the table itself (taken by lock escalation)
+     * conflict with row locks held by other transactions.
+     */
+    public static final int INTENTION_READ = 2;
+
+    public static final int INTENTION_WRITE = 3;
+
+    /*
+     * Read now, write later. Compatible with READ locks, but not with other
+     * UPDATE or WRITE locks, so that transactions reading an item they are
+     * about to write queue up behind each other rather than deadlocking on
+     * converting their READ locks. Rows locked for UPDATE take an
+     * INTENTION_WRITE lock on their table.
+     */
+    public static final int UPDATE = 4;
+
+    /*
+     * Escrow lock on a row whose quantity transactions only add deltas to
+     * (see ResourceManager.escrow()). Compatible with other ESCROW locks
+     * only: the deltas commute, but nobody else may read or write the row
+     * while they are pending. Rows only; takes INTENTION_WRITE on the table.
+     */
+    public static final int ESCROW = 5;
+
     /* A lock request is considered deadlocked after 10 sec. */
     private static int DEADLOCK_TIMEOUT = 10000;
 
+    /* Lock request timeouts, see lock(int, LockKey, int, long). */
+    public static final long NOWAIT = 0;
+
+    public static final long WAIT_DEFAULT = -1;
+
+    /* used by lockAll(): like NOWAIT, but a request that cannot be granted
+       at once is left for later rather than counted as timed out */
+    private static final long BATCH = Long.MIN_VALUE;
+
+    /*
+     * Row locks a transaction may hold on one table before they are escalated
+     * to a single table lock; 0 disables escalation.
+     */
+    private static int ESCALATION_THRESHOLD = Integer.getInteger("lockEscalationThreshold", 1000).intValue();
+
+    /* COMPATIBLE[requested][held] */
+    private static final boolean[][] COMPATIBLE = {
+            //               READ   WRITE  I_READ I_WRITE UPDATE ESCROW
+            /* READ    */ {true, false, true, false, true, false},
+            /* WRITE   */ {false, false, false, false, false, false},
+            /* I_READ  */ {true, false, true, true, true, false},
+            /* I_WRITE */ {false, false, true, true, false, false},
+            /* UPDATE  */ {true, false, true, false, false, false},
+            /* ESCROW  */ {false, false, false, false, false, true},
+    };
+
     private static int TABLE_SIZE = 2039;
 
     private static TPHashTable lockTable = new TPHashTable(TABLE_SIZE);
 
-    private static TPHashTable stampTable = new TPHashTable(TABLE_SIZE);
+    // data item -> requests waiting for it, in the order they will be
+    // granted; guarded by lockTable
+    private static HashMap<LockKey, LinkedList<WaitObj>> waitQueues = new HashMap<>();
+
+    // data item -> its state word; uncontended locks are granted on the word
+    // alone, everything else goes through lockTable
+    private static ConcurrentHashMap<LockKey, LockWord> wordTable = new ConcurrentHashMap<>();
+
+    /* idle words are dropped once the word table grows beyond this size */
+    private static final int WORD_TABLE_SWEEP_SIZE = 65536;
+
+    // xid -> locks held through words, table-level locks and row counts
+    private static ConcurrentHashMap<Integer, TrxnLocks> trxnLocksTable = new ConcurrentHashMap<>();
+
+    // the TrxnLocks last used by the current thread, saves the lookup (and
+    // boxing the xid) for every request of a transaction
+    private static final ThreadLocal<TrxnLocks> lastTrxnLocks = new ThreadLocal<>();
+
+    /* outcome of a request on the fast path */
+    private static final int FAST_GRANTED = 0;
+
+    private static final int FAST_CONVERTED = 1;
+
+    private static final int FAST_REDUNDANT = 2;
+
+    private static final int FAST_FAILED = 3;
+
+    // fails asynchronous lock requests that waited for too long
+    private static final ScheduledThreadPoolExecutor timeoutTimer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "lockmgr-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        timeoutTimer.setRemoveOnCancelPolicy(true);
+    }
+
+    // bound on the threads running continuations at once
+    private static final int ASYNC_THREADS = 8;
 
-    private static TPHashTable waitTable = new TPHashTable(TABLE_SIZE);
+    // runs the continuations of asynchronous lock requests granted by some
+    // other transaction, never under the lockTable monitor. Not the common
+    // pool: under a security manager its threads have no permissions, and
+    // continuations do file I/O. They must not wait for locks themselves,
+    // but request them with lockAsync(): the pool is bounded, and grants
+    // beyond it queue up for a thread.
+    private static final Executor asyncExecutor = Executors.newFixedThreadPool(ASYNC_THREADS, r -> {
+        Thread thread = new Thread(r, "lockmgr-async");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
      * Each Resource Manager needs to construct one instance of the LockManager.
@@ -32,94 +147,545 @@ public class LockManager {
     }
 
     /**
-     * Locks the data item identified by <tt>strData</tt> in mode
+     * Sets the number of row locks a transaction may hold on one table before
+     * they are escalated to a table lock.
+     *
+     * @param threshold number of row locks; 0 disables lock escalation.
+     */
+    public static void setEscalationThreshold(int threshold) {
+        ESCALATION_THRESHOLD = Math.max(threshold, 0);
+    }
+
+    /**
+     * Sets the time after which a waiting lock request is considered
+     * deadlocked.
+     *
+     * @param timeout timeout in milliseconds, should be positive.
+     */
+    public static void setDeadlockTimeout(int timeout) {
+        if (timeout > 0) {
+            DEADLOCK_TIMEOUT = timeout;
+        }
+    }
+
+    /**
+     * Returns a snapshot of the lock contention metrics: counts of grants,
+     * conversions, waits, deadlocks and escalations, wait and hold time
+     * histograms, and the most contended data items.
+     */
+    public LockStats getStats() {
+        synchronized (this.lockTable) {
+            return LockMetrics.snapshot();
+        }
+    }
+
+    /**
+     * Resets the lock contention metrics.
+     */
+    public void resetStats() {
+        synchronized (this.lockTable) {
+            LockMetrics.reset();
+        }
+    }
+
+    /**
+     * Locks the data item named <tt>strData</tt>; a name of the form
+     * "table:key" names a row of a table. See lock(int, LockKey, int).
+     */
+    public boolean lock(int xid, String strData, int lockType) throws DeadlockException {
+        if (strData == null) {
+            return false;
+        }
+        return lock(xid, LockKey.of(strData), lockType);
+    }
+
+    /**
+     * Locks the data item identified by <tt>lockKey</tt> in mode
      * <tt>lockType</tt> on behalf of the transaction with id <tt>xid</tt>.
      * This is a blocking call; if the item is currently locked in a conflicting
-     * lock mode, the requesting thread will sleep until the lock becomes
-     * available or a deadlock is detected.
+     * lock mode, or other transactions are already waiting for it, the
+     * requesting thread will sleep until the lock is granted to it, in FIFO
+     * order, or a deadlock is detected.
      *
      * @param xid      Transaction Identifier, should be non-negative.
-     * @param strData  identifies the data element to be locked; should be non-null.
-     * @param lockType one of LockManager.READ or LockManager.WRITE
+     * @param lockKey  identifies the data element to be locked; should be non-null.
+     * @param lockType one of LockManager.READ, LockManager.UPDATE,
+     *                 LockManager.WRITE or, for rows, LockManager.ESCROW
      * @return true if operation succeeded; false if not (due to invalid
      * parameters).
      * @throws DeadlockException if deadlock is detected (using a timeout)
      */
-    public boolean lock(int xid, String strData, int lockType) throws DeadlockException {
+    public boolean lock(int xid, LockKey lockKey, int lockType) throws DeadlockException {
+        return lock(xid, lockKey, lockType, WAIT_DEFAULT);
+    }
+
+    /**
+     * Locks the data item identified by <tt>lockKey</tt> like
+     * lock(int, LockKey, int), but waits at most <tt>timeout</tt>
+     * milliseconds for a conflicting lock to be released.
+     *
+     * @param timeout NOWAIT to fail at once if the request cannot be granted
+     *                right away, WAIT_DEFAULT to wait until a deadlock is
+     *                detected, or a timeout in milliseconds.
+     * @throws LockTimeoutException if the lock was not granted within the
+     *                              timeout
+     * @throws DeadlockException    if deadlock is detected (using a timeout)
+     */
+    public boolean lock(int xid, LockKey lockKey, int lockType, long timeout) throws DeadlockException {
 
         // if any parameter is invalid, then return false
         if (xid < 0) {
             return false;
         }
 
-        if (strData == null) {
+        if (lockKey == null) {
             return false;
         }
 
-        if ((lockType != TrxnObj.READ) && (lockType != TrxnObj.WRITE)) {
+        if (!isRequestType(lockType) || (lockType == ESCROW && !lockKey.isRow())) {
             return false;
         }
 
-        // two objects in lock table for easy lookup.
-        TrxnObj trxnObj = new TrxnObj(xid, strData, lockType);
-        DataObj dataObj = new DataObj(xid, strData, lockType);
+        if (LockTrace.sampled(xid)) {
+            LockTrace.record(LockTrace.REQUEST, xid, lockKey, lockType, 0);
+        }
+
+        TrxnLocks trxnLocks = trxnLocks(xid);
+        int table = -1;
+        if (lockKey.isRow()) {
+            int intention = intentionOf(lockType);
+            LockKey tableKey = lockKey.getTableKey();
+            int tableLockType = -1;
+            // other requests of the transaction add and remove its tables
+            // under the trxnLocks monitor
+            synchronized (trxnLocks) {
+                table = trxnLocks.tableIndexOf(lockKey);
+                if (table >= 0) {
+                    tableLockType = trxnLocks.getTableLockType(table);
+                }
+            }
+            if (table < 0) {
+                // first row of the table the transaction locks
+                lockItem(trxnLocks, tableKey, intention, timeout);
+                synchronized (trxnLocks) {
+                    table = trxnLocks.addTable(tableKey, intention);
+                }
+            } else {
+                if (tableLockType == WRITE || tableLockType == lockType) {
+                    // a table lock taken by escalation already covers the row
+                    return true;
+                }
+                if (combine(tableLockType, intention) != tableLockType) {
+                    lockItem(trxnLocks, tableKey, intention, timeout);
+                    tableLockType = combine(tableLockType, intention);
+                    synchronized (trxnLocks) {
+                        trxnLocks.setTableLockType(table, tableLockType);
+                    }
+                    if (tableLockType == WRITE) {
+                        // reading the whole table and writing a row of it
+                        // took the table for writing
+                        return true;
+                    }
+                }
+            }
+        }
+
+        if (lockItem(trxnLocks, lockKey, lockType, timeout) && table >= 0) {
+            countRowLock(trxnLocks, table);
+        }
+        return true;
+    }
+
+    /**
+     * Locks a batch of data items on behalf of the transaction with id
+     * <tt>xid</tt>, as if lock(int, LockKey, int, long) was called for each
+     * of them. The requests are sorted by table, then all those that can be
+     * granted right away are granted in a single pass under the lock table
+     * monitor; the others are waited for one by one afterwards.
+     *
+     * @return true if operation succeeded; false if some request had
+     * invalid parameters, in which case no lock is taken.
+     * @throws LockTimeoutException if some lock was not granted within the
+     *                              timeout
+     * @throws DeadlockException    if deadlock is detected (using a timeout)
+     */
+    public boolean lockAll(int xid, Collection<LockRequest> requests, long timeout) throws DeadlockException {
+        LockRequest[] batch = sortBatch(xid, requests);
+        if (batch == null) {
+            return false;
+        }
+        for (int i = lockBatch(xid, batch); i < batch.length; i++) {
+            lock(xid, batch[i].getLockKey(), batch[i].getLockType(), timeout);
+        }
+        return true;
+    }
 
-        // return true when there is no lock conflict or throw a deadlock
-        // exception.
+    /**
+     * lockAll() without blocking the calling thread, the requests that have
+     * to wait are made with lockAsync() one after the other.
+     */
+    public CompletableFuture<Boolean> lockAllAsync(int xid, Collection<LockRequest> requests, long timeout) {
+        LockRequest[] batch = sortBatch(xid, requests);
+        if (batch == null) {
+            return CompletableFuture.completedFuture(Boolean.FALSE);
+        }
+        CompletableFuture<Boolean> locked = CompletableFuture.completedFuture(Boolean.TRUE);
+        for (int i = lockBatch(xid, batch); i < batch.length; i++) {
+            LockRequest request = batch[i];
+            locked = locked.thenCompose(
+                    granted -> lockAsync(xid, request.getLockKey(), request.getLockType(), timeout));
+        }
+        return locked;
+    }
+
+    // returns the requests sorted into the order they are granted in, or
+    // null if some parameter is invalid
+    private LockRequest[] sortBatch(int xid, Collection<LockRequest> requests) {
+        if (xid < 0 || requests == null) {
+            return null;
+        }
+        LockRequest[] batch = requests.toArray(new LockRequest[requests.size()]);
+        for (int i = 0; i < batch.length; i++) {
+            if (batch[i] == null || batch[i].getLockKey() == null
+                    || !isRequestType(batch[i].getLockType())
+                    || (batch[i].getLockType() == ESCROW && !batch[i].getLockKey().isRow())) {
+                return null;
+            }
+        }
+        Arrays.sort(batch, LockRequest::compare);
+        return batch;
+    }
+
+    // grants the requests of batch in order, for as long as they can be
+    // granted without waiting, all under one lockTable monitor. Returns the
+    // index of the first request left.
+    private int lockBatch(int xid, LockRequest[] batch) {
+        int i = 0;
+        synchronized (this.lockTable) {
+            try {
+                for (; i < batch.length; i++) {
+                    lock(xid, batch[i].getLockKey(), batch[i].getLockType(), BATCH);
+                }
+            } catch (DeadlockException e) {
+                // batch[i] would have to wait
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Locks the data item identified by <tt>lockKey</tt> like
+     * lock(int, LockKey, int, long), but without blocking the calling
+     * thread. A request that has to wait is queued like any other and only
+     * costs its queue entry until it is granted.
+     *
+     * @return a future completed with true once the lock is granted (false
+     * for invalid parameters), or exceptionally with the DeadlockException
+     * or LockTimeoutException lock() would have thrown. It may be completed
+     * already; otherwise it is completed on a pool thread.
+     */
+    public CompletableFuture<Boolean> lockAsync(int xid, LockKey lockKey, int lockType, long timeout) {
+        if (xid < 0 || lockKey == null || !isRequestType(lockType) || (lockType == ESCROW && !lockKey.isRow())) {
+            return CompletableFuture.completedFuture(Boolean.FALSE);
+        }
+
+        if (LockTrace.sampled(xid)) {
+            LockTrace.record(LockTrace.REQUEST, xid, lockKey, lockType, 0);
+        }
+
+        TrxnLocks trxnLocks = trxnLocks(xid);
+        if (!lockKey.isRow()) {
+            return lockItemAsync(trxnLocks, lockKey, lockType, timeout).thenApply(granted -> Boolean.TRUE);
+        }
+
+        // the same steps as lock(), each one continuing once the previous
+        // one is granted. covered completes with true if a table lock
+        // covers the row.
+        int intention = intentionOf(lockType);
+        LockKey tableKey = lockKey.getTableKey();
+        int table;
+        int tableLockType = -1;
+        synchronized (trxnLocks) {
+            table = trxnLocks.tableIndexOf(lockKey);
+            if (table >= 0) {
+                tableLockType = trxnLocks.getTableLockType(table);
+            }
+        }
+        CompletableFuture<Boolean> covered;
+        if (table < 0) {
+            covered = lockItemAsync(trxnLocks, tableKey, intention, timeout).thenApply(granted -> {
+                synchronized (trxnLocks) {
+                    trxnLocks.addTable(tableKey, intention);
+                }
+                return Boolean.FALSE;
+            });
+        } else {
+            if (tableLockType == WRITE || tableLockType == lockType) {
+                return CompletableFuture.completedFuture(Boolean.TRUE);
+            }
+            int tableLockType2 = combine(tableLockType, intention);
+            if (tableLockType2 == tableLockType) {
+                covered = CompletableFuture.completedFuture(Boolean.FALSE);
+            } else {
+                covered = lockItemAsync(trxnLocks, tableKey, intention, timeout).thenApply(
+                        granted -> {
+                            synchronized (trxnLocks) {
+                                trxnLocks.setTableLockType(table, tableLockType2);
+                            }
+                            return tableLockType2 == WRITE;
+                        });
+            }
+        }
+
+        return covered.thenCompose(rowCovered -> {
+            if (rowCovered) {
+                return CompletableFuture.completedFuture(Boolean.TRUE);
+            }
+            return lockItemAsync(trxnLocks, lockKey, lockType, timeout).thenApply(granted -> {
+                if (granted) {
+                    int table2;
+                    synchronized (trxnLocks) {
+                        table2 = trxnLocks.tableIndexOf(lockKey);
+                    }
+                    countRowLock(trxnLocks, table2);
+                }
+                return Boolean.TRUE;
+            });
+        });
+    }
+
+    // grants lockType on lockKey to the transaction of trxnLocks. Uncontended
+    // requests are granted on the state word alone, the others go through
+    // the lock table. Returns true if the transaction did not hold any lock
+    // on lockKey before.
+    private boolean lockItem(TrxnLocks trxnLocks, LockKey lockKey, int lockType, long timeout)
+            throws DeadlockException {
+        int result = tryFastLock(trxnLocks, lockKey, lockType);
+        if (result == FAST_FAILED) {
+            trxnLocks.lockTableUsed = true;
+            return acquire(trxnLocks.getXId(), lockKey, lockType, timeout, null);
+        }
+        return result == FAST_GRANTED;
+    }
+
+    // lockItem() for lockAsync(): the future completes with what lockItem()
+    // would have returned
+    private CompletableFuture<Boolean> lockItemAsync(TrxnLocks trxnLocks, LockKey lockKey, int lockType,
+            long timeout) {
+        int result = tryFastLock(trxnLocks, lockKey, lockType);
+        if (result != FAST_FAILED) {
+            return CompletableFuture.completedFuture(result == FAST_GRANTED);
+        }
+        trxnLocks.lockTableUsed = true;
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
         try {
-            boolean bConflict = true;
-            BitSet bConvert = new BitSet(1);
-
-            while (bConflict) {
-                synchronized (this.lockTable) {
-                    // check if this lock request conflicts with existing locks
-                    bConflict = lockConflict(dataObj, bConvert);
-                    if (!bConflict) {
-                        // no lock conflict
-                        synchronized (this.stampTable) {
-                            // remove the timestamp (if any) for this lock
-                            // request
-                            TimeObj timeObj = new TimeObj(xid);
-                            this.stampTable.remove(timeObj);
-                        }
-                        synchronized (this.waitTable) {
-                            // remove the entry for this transaction from
-                            // waitTable (if it
-                            // is there) as it has been granted its lock request
-                            WaitObj waitObj = new WaitObj(xid, strData, lockType);
-                            this.waitTable.remove(waitObj);
-                        }
+            acquire(trxnLocks.getXId(), lockKey, lockType, timeout, future);
+        } catch (DeadlockException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
 
-                        if (bConvert.get(0) == true) {
-                            // lock conversion
-                            // *** ADD CODE HERE *** to carry out the lock
-                            // conversion in the
-                            // lock table
-                            System.out.print("Converting lock...");
-                            convertLockTableObj(trxnObj);
-                            convertLockTableObj(dataObj);
-                            System.out.println("done");
-
-                        } else {
-                            // a lock request that is not lock conversion
-                            this.lockTable.add(trxnObj);
-                            this.lockTable.add(dataObj);
-                        }
+    // fastLock(), counting and tracing the locks granted
+    private int tryFastLock(TrxnLocks trxnLocks, LockKey lockKey, int lockType) {
+        int result = fastLock(trxnLocks, lockKey, lockType);
+        if (result == FAST_FAILED) {
+            return result;
+        }
+        if (result == FAST_GRANTED) {
+            LockMetrics.grants.increment();
+        } else if (result == FAST_CONVERTED) {
+            LockMetrics.conversions.increment();
+        }
+        if (result != FAST_REDUNDANT && LockTrace.sampled(trxnLocks.getXId())) {
+            LockTrace.record((result == FAST_GRANTED) ? LockTrace.GRANT : LockTrace.CONVERT, trxnLocks.getXId(),
+                    lockKey, lockType, 0);
+        }
+        return result;
+    }
+
+    // tries to grant the request by a compare-and-set on the state word of
+    // lockKey. Fails if the data item is in SLOW mode or the request
+    // conflicts with a lock held through the word.
+    private int fastLock(TrxnLocks trxnLocks, LockKey lockKey, int lockType) {
+        LockWord word = this.wordTable.get(lockKey);
+        if (word == null) {
+            word = new LockWord(lockKey);
+            LockWord word2 = this.wordTable.putIfAbsent(lockKey, word);
+            if (word2 != null) {
+                word = word2;
+            }
+        }
+        synchronized (trxnLocks) {
+            if (trxnLocks.released) {
+                return FAST_FAILED;
+            }
+            int held = trxnLocks.getLockType(word);
+            int lockType2 = (held < 0) ? lockType : combine(held, lockType);
+            if (lockType2 == held) {
+                return FAST_REDUNDANT;
+            }
+            if (word.tryLock(held, lockType2)) {
+                trxnLocks.setLockType(word, lockType2);
+                return (held < 0) ? FAST_GRANTED : FAST_CONVERTED;
+            }
+        }
+        return FAST_FAILED;
+    }
+
+    // returns the TrxnLocks of xid, creating it if needed
+    private TrxnLocks trxnLocks(int xid) {
+        TrxnLocks trxnLocks = this.lastTrxnLocks.get();
+        if (trxnLocks != null && trxnLocks.getXId() == xid && !trxnLocks.released) {
+            return trxnLocks;
+        }
+        trxnLocks = this.trxnLocksTable.get(xid);
+        if (trxnLocks == null) {
+            trxnLocks = new TrxnLocks(xid);
+            TrxnLocks trxnLocks2 = this.trxnLocksTable.putIfAbsent(xid, trxnLocks);
+            if (trxnLocks2 != null) {
+                trxnLocks = trxnLocks2;
+            }
+        }
+        this.lastTrxnLocks.set(trxnLocks);
+        return trxnLocks;
+    }
+
+    // returns the state word of lockKey, switched to SLOW mode so that no
+    // more locks are granted on the word alone. Callers must hold the
+    // lockTable monitor.
+    private LockWord slowWord(LockKey lockKey) {
+        while (true) {
+            LockWord word = this.wordTable.get(lockKey);
+            if (word == null) {
+                word = new LockWord(lockKey);
+                LockWord word2 = this.wordTable.putIfAbsent(lockKey, word);
+                if (word2 != null) {
+                    word = word2;
+                }
+            }
+            if (word.setSlow()) {
+                return word;
+            }
+            this.wordTable.remove(lockKey, word);
+        }
+    }
+
+    // grants lockType on lockKey to xid, waiting while the request conflicts
+    // with locks of other transactions. Returns true if xid did not hold any
+    // lock on lockKey before, false if the request was redundant or a lock
+    // conversion. If future is not null the calling thread never waits: the
+    // request is queued with future, which is completed with the return
+    // value once the lock is granted, and false is returned at once.
+    private boolean acquire(int xid, LockKey lockKey, int lockType, long timeout,
+            CompletableFuture<Boolean> future) throws DeadlockException {
+        // two objects in lock table for easy lookup.
+        TrxnObj trxnObj = new TrxnObj(xid, lockKey, lockType);
+        DataObj dataObj = new DataObj(xid, lockKey, lockType);
+
+        BitSet bConvert = new BitSet(2);
+        WaitObj waitObj;
+        synchronized (this.lockTable) {
+            // from now on locks on lockKey are only granted through the lock
+            // table
+            slowWord(lockKey);
+
+            // check if this lock request conflicts with existing locks
+            int conflict;
+            try {
+                conflict = lockConflict(dataObj, bConvert);
+                // requests queue up behind earlier waiters, except for
+                // conversions: the waiters may well be waiting for the very
+                // lock being converted.
+                if (conflict < 0 && (bConvert.get(0) || !this.waitQueues.containsKey(lockKey))) {
+                    grantLockTableObj(trxnObj, dataObj, bConvert);
+                    if (future != null) {
+                        future.complete(!bConvert.get(0));
                     }
+                    return !bConvert.get(0);
                 }
-                if (bConflict) {
-                    // lock conflict exists, wait
-                    waitLock(dataObj);
+            } catch (RedundantLockRequestException redundantlockrequest) {
+                // just ignore the redundant lock request
+                clearSlowIfIdle(lockKey);
+                if (future != null) {
+                    future.complete(Boolean.FALSE);
                 }
+                return false;
+            }
+
+            if (timeout == BATCH) {
+                clearSlowIfIdle(lockKey);
+                throw new LockTimeoutException(xid, "left for later");
+            }
+            if (timeout == NOWAIT) {
+                clearSlowIfIdle(lockKey);
+                LockMetrics.timeouts.increment();
+                if (LockTrace.sampled(xid)) {
+                    LockTrace.record(LockTrace.TIMEOUT, xid, lockKey, dataObj.getLockType(), 0);
+                }
+                throw new LockTimeoutException(xid, "lock not available");
+            }
+
+            if (future != null) {
+                waitObj = new WaitObj(xid, lockKey, dataObj.getLockType(), future, bConvert.get(0));
+            } else {
+                waitObj = new WaitObj(xid, lockKey, dataObj.getLockType(), Thread.currentThread(), bConvert.get(0));
+            }
+            enqueue(waitObj);
+            LockMetrics.waits.increment();
+            LockMetrics.recordContended(lockKey);
+            if (LockTrace.sampled(xid)) {
+                // conflict is -1 when the request queues up behind waiters
+                LockTrace.record(LockTrace.WAIT, xid, lockKey, dataObj.getLockType(), conflict);
+            }
+            if (future != null) {
+                long delay = (timeout < 0) ? LockManager.DEADLOCK_TIMEOUT : timeout;
+                WaitObj waitObj2 = waitObj;
+                waitObj.setTimeoutTask(timeoutTimer.schedule(() -> expireWaiter(waitObj2, timeout), delay,
+                        TimeUnit.MILLISECONDS));
+                return false;
             }
-        } catch (DeadlockException deadlock) {
-            throw deadlock;
-        } catch (RedundantLockRequestException redundantlockrequest) {
-            // just ignore the redundant lock request
-            return true;
         }
 
-        return true;
+        // lock conflict exists, wait until the lock is handed over to us or
+        // a deadlock is detected
+        waitLock(waitObj, timeout);
+        return !waitObj.isConversion();
+    }
+
+    // adds a granted lock to the lock table. trxnObj and dataObj carry the
+    // mode the transaction holds once the lock is granted, bConvert is the
+    // bitset filled in by lockConflict().
+    private void grantLockTableObj(TrxnObj trxnObj, DataObj dataObj, BitSet bConvert) {
+        if (bConvert.get(1)) {
+            // the lock held through the state word moves into the lock
+            // table, in its new mode
+            LockWord word = this.wordTable.get(dataObj.getLockKey());
+            TrxnLocks trxnLocks = this.trxnLocksTable.get(dataObj.getXId());
+            if (trxnLocks != null) {
+                synchronized (trxnLocks) {
+                    int held = trxnLocks.getLockType(word);
+                    if (held >= 0) {
+                        word.release(held);
+                        trxnLocks.setLockType(word, -1);
+                    }
+                }
+            }
+            this.lockTable.add(trxnObj);
+            this.lockTable.add(dataObj);
+        } else if (bConvert.get(0)) {
+            convertLockTableObj(trxnObj, dataObj.getLockType());
+            convertLockTableObj(dataObj, dataObj.getLockType());
+        } else {
+            // a lock request that is not lock conversion
+            this.lockTable.add(trxnObj);
+            this.lockTable.add(dataObj);
+        }
+        (bConvert.get(0) ? LockMetrics.conversions : LockMetrics.grants).increment();
+        if (LockTrace.sampled(dataObj.getXId())) {
+            LockTrace.record(bConvert.get(0) ? LockTrace.CONVERT : LockTrace.GRANT, dataObj.getXId(),
+                    dataObj.getLockKey(), dataObj.getLockType(), 0);
+        }
     }
 
     /**
@@ -136,251 +702,652 @@ public class LockManager {
             return false;
         }
 
-        TrxnObj trxnQueryObj = new TrxnObj(xid, "", -1); // Only used in
+        // first the locks held through state words, without the lockTable
+        // monitor
+        Vector released = new Vector();
+        int count = 0;
+        TrxnLocks trxnLocks = this.trxnLocksTable.remove(xid);
+        if (trxnLocks != null) {
+            synchronized (trxnLocks) {
+                trxnLocks.released = true;
+                count = releaseWords(trxnLocks, null, released);
+            }
+            LockMetrics.recordHold(System.nanoTime() - trxnLocks.startTime);
+            if (!trxnLocks.lockTableUsed && released.isEmpty()
+                    && this.wordTable.size() <= WORD_TABLE_SWEEP_SIZE) {
+                // nothing in the lock table, and nobody waiting for the
+                // locks just released
+                if (LockTrace.sampled(xid)) {
+                    LockTrace.record(LockTrace.RELEASE, xid, null, -1, count);
+                }
+                return true;
+            }
+        }
+
+        TrxnObj trxnQueryObj = new TrxnObj(xid, null, -1); // Only used in
         // elements() call
         // below.
         synchronized (this.lockTable) {
             Vector vect = this.lockTable.elements(trxnQueryObj);
 
             TrxnObj trxnObj;
-            Vector waitVector;
-            WaitObj waitObj;
             int size = vect.size();
 
             for (int i = (size - 1); i >= 0; i--) {
 
                 trxnObj = (TrxnObj) vect.elementAt(i);
+                if (trxnObj.getClass() != TrxnObj.class || trxnObj.getXId() != xid) {
+                    // a DataObj whose key happens to equal xid
+                    continue;
+                }
                 this.lockTable.remove(trxnObj);
 
-                DataObj dataObj = new DataObj(trxnObj.getXId(), trxnObj.getDataName(), trxnObj.getLockType());
+                DataObj dataObj = new DataObj(trxnObj.getXId(), trxnObj.getLockKey(), trxnObj.getLockType());
                 this.lockTable.remove(dataObj);
+                released.addElement(dataObj.getLockKey());
+                count++;
+            }
+            if (LockTrace.sampled(xid)) {
+                LockTrace.record(LockTrace.RELEASE, xid, null, -1, count);
+            }
 
-                // check if there are any waiting transactions.
-                synchronized (this.waitTable) {
-                    // get all the transactions waiting on this dataObj
-                    waitVector = this.waitTable.elements(dataObj);
-                    int waitSize = waitVector.size();
-                    for (int j = 0; j < waitSize; j++) {
-                        waitObj = (WaitObj) waitVector.elementAt(j);
-                        if (waitObj.getLockType() == LockManager.WRITE) {
-                            if (j == 0) {
-                                // get all other transactions which have locks
-                                // on the
-                                // data item just unlocked.
-                                Vector vect1 = this.lockTable.elements(dataObj);
-
-                                // remove interrupted thread from waitTable only
-                                // if no
-                                // other transaction has locked this data item
-                                if (vect1.size() == 0
-
-                                        || (vect1.size() == 1 && ((XObj) vect1.elementAt(0)).getXId() == waitObj.getXId())
-
-                                ) {
-                                    this.waitTable.remove(waitObj);
-
-                                    try {
-                                        synchronized (waitObj.getThread()) {
-                                            waitObj.getThread().notify();
-                                        }
-                                    } catch (Exception e) {
-                                        System.out.println("Exception on unlock\n" + e.getMessage());
-                                    }
-                                } else {
-                                    // some other transaction still has a lock
-                                    // on
-                                    // the data item just unlocked. So, WRITE
-                                    // lock
-                                    // cannot be granted.
-                                    break;
-                                }
-                            }
+            // a request the transaction is still waiting for (e.g. it is
+            // aborted by the TM while blocked) must not be granted anymore,
+            // nobody would ever release it.
+            cancelWaiters(xid);
 
-                            // stop granting READ locks as soon as you find a
-                            // WRITE lock
-                            // request in the queue of requests
-                            break;
-                        } else if (waitObj.getLockType() == LockManager.READ) {
-                            // remove interrupted thread from waitTable.
-                            this.waitTable.remove(waitObj);
-
-                            try {
-                                synchronized (waitObj.getThread()) {
-                                    waitObj.getThread().notify();
-                                }
-                            } catch (Exception e) {
-                                System.out.println("Exception e\n" + e.getMessage());
-                            }
-                        }
-                    }
+            // hand the released data items over to the transactions waiting
+            // for them
+            size = released.size();
+            for (int i = 0; i < size; i++) {
+                grantWaiters((LockKey) released.elementAt(i));
+            }
+
+            if (this.wordTable.size() > WORD_TABLE_SWEEP_SIZE) {
+                sweepWordTable();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Releases the read locks of the transaction with id <tt>xid</tt>: its
+     * READ and UPDATE locks, and its READ and INTENTION_READ table locks.
+     * Its other locks stay held. Meant for a transaction that has done all
+     * of its reads, e.g. once it is prepared.
+     *
+     * @param xid Transaction Identifier, should be non-negative.
+     * @return true if the operation succeeded, false if not.
+     */
+    public boolean unlockReads(int xid) {
+        if (xid < 0) {
+            return false;
+        }
+        TrxnLocks trxnLocks = this.trxnLocksTable.get(xid);
+        if (trxnLocks == null) {
+            return true;
+        }
+
+        Vector released = new Vector();
+        int count = 0;
+        synchronized (trxnLocks) {
+            int size = trxnLocks.size();
+            for (int i = 0; i < size; i++) {
+                LockWord word = trxnLocks.wordAt(i);
+                int lockType = trxnLocks.lockTypeAt(i);
+                if (word == null || !isReadType(lockType)) {
+                    continue;
+                }
+                if (word.release(lockType)) {
+                    released.addElement(word.getLockKey());
+                }
+                trxnLocks.clearAt(i);
+                count++;
+            }
+            for (int i = trxnLocks.tableCount() - 1; i >= 0; i--) {
+                if (isReadType(trxnLocks.getTableLockType(i))) {
+                    trxnLocks.removeTable(i);
                 }
             }
         }
+        if (!trxnLocks.lockTableUsed && released.isEmpty()) {
+            if (LockTrace.sampled(xid)) {
+                LockTrace.record(LockTrace.RELEASE, xid, null, -1, count);
+            }
+            return true;
+        }
 
+        TrxnObj trxnQueryObj = new TrxnObj(xid, null, -1);
+        synchronized (this.lockTable) {
+            Vector vect = this.lockTable.elements(trxnQueryObj);
+            for (int i = vect.size() - 1; i >= 0; i--) {
+                TrxnObj trxnObj = (TrxnObj) vect.elementAt(i);
+                if (trxnObj.getClass() != TrxnObj.class || trxnObj.getXId() != xid
+                        || !isReadType(trxnObj.getLockType())) {
+                    continue;
+                }
+                this.lockTable.remove(trxnObj);
+                this.lockTable.remove(new DataObj(xid, trxnObj.getLockKey(), trxnObj.getLockType()));
+                released.addElement(trxnObj.getLockKey());
+                count++;
+            }
+            if (LockTrace.sampled(xid)) {
+                LockTrace.record(LockTrace.RELEASE, xid, null, -1, count);
+            }
+            for (int i = 0; i < released.size(); i++) {
+                grantWaiters((LockKey) released.elementAt(i));
+            }
+        }
         return true;
     }
 
-    // returns true if the lock request on dataObj conflicts with
-    // already existing locks. If the lock request is a redundant one
-    // (for eg: if a transaction holds a read lock on certain data
-    // item and again requests for a read lock), then this is
-    // ignored. This is done by throwing RedundantLockRequestException
-    // which is handled appropriately by the caller. If the lock
-    // request is a conversion from READ lock to WRITE lock, then
-    // bitset is set.
-    private boolean lockConflict(DataObj dataObj, BitSet bitset) throws DeadlockException,
+    // true for the lock types that only protect reads
+    private static boolean isReadType(int lockType) {
+        return lockType == READ || lockType == UPDATE || lockType == INTENTION_READ;
+    }
+
+    // releases the locks trxnLocks holds through state words on rows of
+    // table, or on all data items if table is null. Data items in SLOW mode
+    // are added to released, their waiters may now be granted. Returns the
+    // number of locks released. Callers must hold the trxnLocks monitor.
+    private int releaseWords(TrxnLocks trxnLocks, LockKey table, Vector released) {
+        int count = 0;
+        int size = trxnLocks.size();
+        for (int i = 0; i < size; i++) {
+            LockWord word = trxnLocks.wordAt(i);
+            int lockType = trxnLocks.lockTypeAt(i);
+            if (word == null || lockType < 0) {
+                continue;
+            }
+            LockKey lockKey = word.getLockKey();
+            if (table != null && !lockKey.isRowOf(table)) {
+                continue;
+            }
+            boolean slow = word.release(lockType);
+            trxnLocks.clearAt(i);
+            count++;
+            if (slow) {
+                released.addElement(lockKey);
+            }
+        }
+        return count;
+    }
+
+    // drops the words of data items nobody holds or waits for. Callers must
+    // hold the lockTable monitor.
+    private void sweepWordTable() {
+        for (Iterator<LockWord> iter = this.wordTable.values().iterator(); iter.hasNext(); ) {
+            LockWord word = iter.next();
+            if (word.retire()) {
+                iter.remove();
+            }
+        }
+    }
+
+    // returns the lock type of a lock of some other transaction that the
+    // lock request on dataObj conflicts with, or -1 if there is none. If
+    // the lock request is a redundant one (for eg: if a transaction holds a
+    // read lock on certain data item and again requests for a read lock),
+    // then this is ignored. This is done by throwing
+    // RedundantLockRequestException which is handled appropriately by the
+    // caller. If the lock request is a conversion (for eg: from READ lock to
+    // WRITE lock), then bitset is set and the lock type of dataObj is raised
+    // to the mode the transaction will hold once the conversion is done.
+    private int lockConflict(DataObj dataObj, BitSet bitset) throws DeadlockException,
             RedundantLockRequestException {
-        Vector vect = this.lockTable.elements(dataObj);
+        Vector vect = locksOn(dataObj);
         DataObj dataObj2;
         int size = vect.size();
 
-        // as soon as a lock that conflicts with the current lock
-        // request is found, return true
-        for (int i = 0; i < size; i++) {
+        // locks held through the state word of the data item
+        long state = 0;
+        int held = -1;
+        LockWord word = this.wordTable.get(dataObj.getLockKey());
+        if (word != null) {
+            state = word.get();
+            TrxnLocks trxnLocks = this.trxnLocksTable.get(dataObj.getXId());
+            if (trxnLocks != null) {
+                synchronized (trxnLocks) {
+                    held = trxnLocks.getLockType(word);
+                }
+            }
+        }
+
+        // first look for a lock this transaction already has on the data
+        // item, which means that it is either relocking it or is converting
+        // the lock
+        if (held >= 0) {
+            int lockType = combine(held, dataObj.getLockType());
+            if (lockType == held) {
+                throw new RedundantLockRequestException(dataObj.getXId(), "Redundant " +
+                        lockTypeName(dataObj.getLockType()) + " lock request");
+            }
+            dataObj.setLockType(lockType);
+            bitset.set(0);
+            bitset.set(1);
+        }
+        for (int i = 0; i < size && held < 0; i++) {
             dataObj2 = (DataObj) vect.elementAt(i);
             if (dataObj.getXId() == dataObj2.getXId()) {
-                // the transaction already has a lock on this data
-                // item which means that it is either relocking it or
-                // is converting the lock
-                if (dataObj.getLockType() == DataObj.READ) {
-                    // since transaction already has a lock (may be
-                    // READ, may be WRITE. we don't care) on this data
-                    // item and it is requesting a READ lock, this
-                    // lock request is redundant.
-                    throw new RedundantLockRequestException(dataObj.getXId(), "Redundant READ lock request");
-                } else if (dataObj.getLockType() == DataObj.WRITE) {
-                    // transaction already has a lock and is requesting a WRITE
-                    // lock
-                    // now there are two cases to analyze here
-                    // (1) transaction already had a READ lock
-                    // (2) transaction already had a WRITE lock
-                    // Seeing the comments at the top of this function might be
-                    // helpful
-                    // *** ADD CODE HERE *** to take care of both these cases
-                    if (dataObj2.getLockType() == DataObj.WRITE) {
-                        // since the transaction already has a write lock on
-                        // this
-                        // data item, this locm request is redundant
-                        throw new RedundantLockRequestException(dataObj.getXId(), "Redundant WRITE lock request");
-                    } else {
-                        // the transaction has a READ lock and has requested a
-                        // WRITE lock,
-                        // so this is a lock conversion request
-                        System.out.println("Want WRITE, have READ, requesting lock upgrade");
-                        bitset.set(0);
-                        // we can't just return false here, because some other
-                        // transaction may also have a READ lock. So we must
-                        // continue iterating through the chain of locks.
-                    }
-                }
-            } else {
-                if (dataObj.getLockType() == DataObj.READ) {
-                    if (dataObj2.getLockType() == DataObj.WRITE) {
-                        // transaction is requesting a READ lock and some other
-                        // transaction
-                        // already has a WRITE lock on it ==> conflict
-                        System.out.println("Want READ, someone has WRITE");
-                        return true;
-                    } else {
-                        // do nothing
-                    }
-                } else if (dataObj.getLockType() == DataObj.WRITE) {
-                    // transaction is requesting a WRITE lock and some other
-                    // transaction has either
-                    // a READ or a WRITE lock on it ==> conflict
-                    System.out.println("Want WRITE, someone has READ or WRITE");
-                    return true;
+                int lockType = combine(dataObj2.getLockType(), dataObj.getLockType());
+                if (lockType == dataObj2.getLockType()) {
+                    // the lock already held is at least as strong as the
+                    // requested one, this lock request is redundant.
+                    throw new RedundantLockRequestException(dataObj.getXId(), "Redundant " +
+                            lockTypeName(dataObj.getLockType()) + " lock request");
                 }
+                dataObj.setLockType(lockType);
+                bitset.set(0);
+                break;
+            }
+        }
+
+        // as soon as a lock of some other transaction that conflicts with
+        // the current lock request is found, return its lock type
+        int lockType2 = conflictingLockType(dataObj.getLockType(), state, held);
+        if (lockType2 >= 0) {
+            return lockType2;
+        }
+        for (int i = 0; i < size; i++) {
+            dataObj2 = (DataObj) vect.elementAt(i);
+            if (dataObj.getXId() != dataObj2.getXId()
+                    && !COMPATIBLE[dataObj.getLockType()][dataObj2.getLockType()]) {
+                return dataObj2.getLockType();
             }
         }
 
-        // no conflicting lock found, return false
-        return false;
+        // no conflicting lock found
+        return -1;
 
     }
 
-    private void waitLock(DataObj dataObj) throws DeadlockException {
-        // Check timestamp or add a new one.
-        // Will always add new timestamp for each new lock request since
-        // the timeObj is deleted each time the transaction succeeds in
-        // getting a lock (see Lock() )
+    // returns a lock type held through the state word that conflicts with
+    // lockType, or -1 if there is none. held is the lock type the requesting
+    // transaction itself holds through the word (-1 for none), which never
+    // conflicts.
+    static int conflictingLockType(int lockType, long state, int held) {
+        for (int lockType2 = READ; lockType2 <= ESCROW; lockType2++) {
+            int holders = LockWord.holders(state, lockType2) - ((lockType2 == held) ? 1 : 0);
+            if (holders > 0 && !COMPATIBLE[lockType][lockType2]) {
+                return lockType2;
+            }
+        }
+        return -1;
+    }
 
-        TimeObj timeObj = new TimeObj(dataObj.getXId());
-        TimeObj timestamp = null;
-        long timeBlocked = 0;
-        Thread thisThread = Thread.currentThread();
-        WaitObj waitObj = new WaitObj(dataObj.getXId(), dataObj.getDataName(), dataObj.getLockType(), thisThread);
+    // appends waitObj to the wait queue of its data item. Conversions are
+    // queued ahead of all ordinary requests, in arrival order among
+    // themselves. Callers must hold the lockTable monitor.
+    private void enqueue(WaitObj waitObj) {
+        LockKey lockKey = waitObj.getLockKey();
+        LinkedList<WaitObj> queue = this.waitQueues.get(lockKey);
+        if (queue == null) {
+            queue = new LinkedList<>();
+            this.waitQueues.put(lockKey, queue);
+        }
+        if (!waitObj.isConversion()) {
+            queue.addLast(waitObj);
+            return;
+        }
+        ListIterator<WaitObj> iter = queue.listIterator();
+        while (iter.hasNext()) {
+            if (!iter.next().isConversion()) {
+                iter.previous();
+                break;
+            }
+        }
+        iter.add(waitObj);
+    }
 
-        synchronized (this.stampTable) {
-            Vector vect = this.stampTable.elements(timeObj);
-            if (vect.size() == 0) {
-                // add the time stamp for this lock request to stampTable
-                this.stampTable.add(timeObj);
-                timestamp = timeObj;
-            } else if (vect.size() == 1) {
-                // lock operation could have timed out; check for deadlock
-                TimeObj prevStamp = (TimeObj) vect.firstElement();
-                timestamp = prevStamp;
-                timeBlocked = timeObj.getTime() - prevStamp.getTime();
-                if (timeBlocked >= LockManager.DEADLOCK_TIMEOUT) {
-                    // the transaction has been waiting for a period greater
-                    // than the timeout period
-                    cleanupDeadlock(prevStamp, waitObj);
+    // grants the requests at the head of the wait queue of lockKey, in FIFO
+    // order, for as long as they are compatible with the locks held on it,
+    // and wakes up exactly the threads whose requests were granted. Callers
+    // must hold the lockTable monitor.
+    private void grantWaiters(LockKey lockKey) {
+        LinkedList<WaitObj> queue = this.waitQueues.get(lockKey);
+        while (queue != null && !queue.isEmpty()) {
+            WaitObj waitObj = queue.getFirst();
+            DataObj dataObj = new DataObj(waitObj.getXId(), lockKey, waitObj.getLockType());
+            BitSet bConvert = new BitSet(2);
+            try {
+                if (lockConflict(dataObj, bConvert) >= 0) {
+                    // stop at the first request that cannot be granted, so
+                    // that later requests do not overtake it
+                    break;
                 }
-            } else {
-                // should never get here. shouldn't be more than one time stamp
-                // per transaction
-                // because a transaction at a given time the transaction can be
-                // blocked on just one lock
-                // request.
+                grantLockTableObj(new TrxnObj(waitObj.getXId(), lockKey, dataObj.getLockType()), dataObj,
+                        bConvert);
+            } catch (DeadlockException | RedundantLockRequestException e) {
+                // the transaction got the lock some other way meanwhile
             }
+            queue.removeFirst();
+            waitObj.setState(WaitObj.GRANTED);
+            wakeWaiter(waitObj);
+        }
+        if (queue != null && queue.isEmpty()) {
+            this.waitQueues.remove(lockKey);
         }
+        clearSlowIfIdle(lockKey);
+    }
 
-        // suspend thread and wait until notified...
+    // lets the fast path grant locks on lockKey again once it has neither
+    // lock table entries nor waiters. Callers must hold the lockTable
+    // monitor.
+    private void clearSlowIfIdle(LockKey lockKey) {
+        if (this.waitQueues.containsKey(lockKey)) {
+            return;
+        }
+        if (!locksOn(new DataObj(0, lockKey, READ)).isEmpty()) {
+            return;
+        }
+        LockWord word = this.wordTable.get(lockKey);
+        if (word != null) {
+            word.clearSlow();
+        }
+    }
 
-        synchronized (this.waitTable) {
-            if (!this.waitTable.contains(waitObj)) {
-                // register this transaction in the waitTable if it is not
-                // already there
-                this.waitTable.add(waitObj);
-            } else {
-                // else lock manager already knows the transaction is waiting.
+    // removes the queued requests of xid and wakes their threads up, which
+    // then fail with a DeadlockException. Callers must hold the lockTable
+    // monitor.
+    private void cancelWaiters(int xid) {
+        if (this.waitQueues.isEmpty()) {
+            return;
+        }
+        Vector changed = new Vector();
+        for (Iterator<LinkedList<WaitObj>> iter = this.waitQueues.values().iterator(); iter.hasNext(); ) {
+            LinkedList<WaitObj> queue = iter.next();
+            for (Iterator<WaitObj> iter2 = queue.iterator(); iter2.hasNext(); ) {
+                WaitObj waitObj = iter2.next();
+                if (waitObj.getXId() == xid) {
+                    iter2.remove();
+                    waitObj.setState(WaitObj.CANCELLED);
+                    LockMetrics.cancelled.increment();
+                    if (LockTrace.sampled(xid)) {
+                        LockTrace.record(LockTrace.DEADLOCK, xid, waitObj.getLockKey(), waitObj.getLockType(), 0);
+                    }
+                    wakeWaiter(waitObj);
+                    changed.addElement(waitObj.getLockKey());
+                }
             }
         }
+        // the requests behind the cancelled ones may be grantable now
+        int size = changed.size();
+        for (int i = 0; i < size; i++) {
+            grantWaiters((LockKey) changed.elementAt(i));
+        }
+    }
 
-        synchronized (thisThread) {
+    // wakes up the thread of waitObj, which has just been granted or
+    // cancelled, or completes its future. Callers must hold the lockTable
+    // monitor.
+    private void wakeWaiter(WaitObj waitObj) {
+        CompletableFuture<Boolean> future = waitObj.getFuture();
+        if (future == null) {
+            LockSupport.unpark(waitObj.getThread());
+            return;
+        }
+        if (waitObj.getTimeoutTask() != null) {
+            waitObj.getTimeoutTask().cancel(false);
+        }
+        LockMetrics.recordWait(System.nanoTime() - waitObj.getStartTime());
+        if (waitObj.getState() == WaitObj.GRANTED) {
+            asyncExecutor.execute(() -> future.complete(!waitObj.isConversion()));
+        } else {
+            DeadlockException e = new DeadlockException(waitObj.getXId(), "Locks released while waiting.");
+            asyncExecutor.execute(() -> future.completeExceptionally(e));
+        }
+    }
+
+    // fails the asynchronous request waitObj if it is still waiting once
+    // its timeout has elapsed, as waitLock() does for a parked thread
+    private void expireWaiter(WaitObj waitObj, long timeout) {
+        DeadlockException deadlock;
+        synchronized (this.lockTable) {
+            if (waitObj.getState() != WaitObj.WAITING) {
+                return;
+            }
+            waitObj.setState(WaitObj.CANCELLED);
             try {
-                thisThread.wait(LockManager.DEADLOCK_TIMEOUT - timeBlocked);
-                TimeObj currTime = new TimeObj(dataObj.getXId());
-                timeBlocked = currTime.getTime() - timestamp.getTime();
-                if (timeBlocked >= LockManager.DEADLOCK_TIMEOUT) {
-                    // the transaction has been waiting for a period greater
-                    // than the timeout period
-                    cleanupDeadlock(timestamp, waitObj);
-                } else {
-                    return;
+                cleanupDeadlock(waitObj, timeout);
+                return;
+            } catch (DeadlockException e) {
+                deadlock = e;
+            }
+        }
+        LockMetrics.recordWait(System.nanoTime() - waitObj.getStartTime());
+        DeadlockException e = deadlock;
+        asyncExecutor.execute(() -> waitObj.getFuture().completeExceptionally(e));
+    }
+
+    // parks the current thread until waitObj is granted. The request is
+    // considered deadlocked when it is still waiting after DEADLOCK_TIMEOUT,
+    // or timed out after timeout milliseconds if one was given.
+    private void waitLock(WaitObj waitObj, long timeout) throws DeadlockException {
+        long start = System.nanoTime();
+        long deadline = start + ((timeout < 0) ? LockManager.DEADLOCK_TIMEOUT : timeout) * 1000000L;
+
+        try {
+            while (waitObj.getState() == WaitObj.WAITING) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    synchronized (this.lockTable) {
+                        if (waitObj.getState() != WaitObj.WAITING) {
+                            // granted or cancelled just in time
+                            break;
+                        }
+                        // the transaction has been waiting for a period
+                        // greater than the timeout period
+                        cleanupDeadlock(waitObj, timeout);
+                    }
                 }
-            } catch (InterruptedException e) {
-                System.out.println("Thread interrupted?");
+                LockSupport.parkNanos(this, remaining);
             }
+        } finally {
+            LockMetrics.recordWait(System.nanoTime() - start);
+        }
+
+        if (waitObj.getState() == WaitObj.CANCELLED) {
+            throw new DeadlockException(waitObj.getXId(), "Locks released while waiting.");
         }
     }
 
-    // cleanupDeadlock cleans up stampTable and waitTable, and throws
-    // DeadlockException
-    private void cleanupDeadlock(TimeObj tmObj, WaitObj waitObj) throws DeadlockException {
-        synchronized (this.stampTable) {
-            synchronized (this.waitTable) {
-                this.stampTable.remove(tmObj);
-                this.waitTable.remove(waitObj);
+    // cleanupDeadlock removes the request from its wait queue, lets the
+    // requests behind it proceed, and throws DeadlockException, or
+    // LockTimeoutException if the request had a timeout of its own. Callers
+    // must hold the lockTable monitor.
+    private void cleanupDeadlock(WaitObj waitObj, long timeout) throws DeadlockException {
+        (timeout < 0 ? LockMetrics.deadlocks : LockMetrics.timeouts).increment();
+        if (LockTrace.sampled(waitObj.getXId())) {
+            LockTrace.record((timeout < 0) ? LockTrace.DEADLOCK : LockTrace.TIMEOUT, waitObj.getXId(),
+                    waitObj.getLockKey(), waitObj.getLockType(), 0);
+        }
+        LockKey lockKey = waitObj.getLockKey();
+        LinkedList<WaitObj> queue = this.waitQueues.get(lockKey);
+        if (queue != null) {
+            for (Iterator<WaitObj> iter = queue.iterator(); iter.hasNext(); ) {
+                if (iter.next() == waitObj) {
+                    iter.remove();
+                    break;
+                }
             }
+            grantWaiters(lockKey);
+            if (queue.isEmpty()) {
+                this.waitQueues.remove(lockKey);
+            }
+        }
+        if (timeout >= 0) {
+            throw new LockTimeoutException(waitObj.getXId(), "not granted within " + timeout + " ms");
         }
         throw new DeadlockException(waitObj.getXId(), "Sleep timeout...deadlock.");
     }
 
-    private void convertLockTableObj(TrxnObj trxnObj) {
-        trxnObj.setLockType(TrxnObj.READ);
-        TrxnObj trxnObj2 = (TrxnObj) this.lockTable.get(trxnObj);
-        trxnObj2.setLockType(TrxnObj.WRITE);
+    // returns the locks held on the data item of dataObj. The lock table is
+    // keyed by hash codes, so entries of other data items (or transactions)
+    // that happen to share the key are filtered out. Callers must hold the
+    // lockTable monitor.
+    private Vector locksOn(DataObj dataObj) {
+        Vector vect = this.lockTable.elements(dataObj);
+        LockKey lockKey = dataObj.getLockKey();
+        for (int i = vect.size() - 1; i >= 0; i--) {
+            Object obj = vect.elementAt(i);
+            if (!(obj instanceof DataObj) || !((DataObj) obj).getLockKey().equals(lockKey)) {
+                vect.removeElementAt(i);
+            }
+        }
+        return vect;
+    }
+
+    // sets the lock type of the lock table entry of trxnObj's transaction on
+    // trxnObj's data item to lockType.
+    private void convertLockTableObj(TrxnObj trxnObj, int lockType) {
+        Vector vect = this.lockTable.elements(trxnObj);
+        int size = vect.size();
+        for (int i = 0; i < size; i++) {
+            TrxnObj trxnObj2 = (TrxnObj) vect.elementAt(i);
+            if (trxnObj2.getClass() == trxnObj.getClass() && trxnObj2.getXId() == trxnObj.getXId()
+                    && trxnObj2.getLockKey().equals(trxnObj.getLockKey())) {
+                trxnObj2.setLockType(lockType);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the mode a transaction holds after being granted requested on
+     * top of held.
+     */
+    public static int combine(int held, int requested) {
+        if (held == requested) {
+            return held;
+        }
+        if (held == WRITE || requested == WRITE) {
+            return WRITE;
+        }
+        if (held == INTENTION_READ) {
+            return requested;
+        }
+        if (requested == INTENTION_READ) {
+            return held;
+        }
+        if ((held == READ && requested == UPDATE) || (held == UPDATE && requested == READ)) {
+            return UPDATE;
+        }
+        // READ or UPDATE together with INTENTION_WRITE; a transaction
+        // reading the whole table and writing some of its rows simply locks
+        // the table for writing. A row locked for ESCROW that the
+        // transaction also reads or writes is locked for writing, too.
+        return WRITE;
+    }
+
+    static String lockTypeName(int lockType) {
+        switch (lockType) {
+            case READ:
+                return "READ";
+            case WRITE:
+                return "WRITE";
+            case INTENTION_READ:
+                return "INTENTION_READ";
+            case INTENTION_WRITE:
+                return "INTENTION_WRITE";
+            case UPDATE:
+                return "UPDATE";
+            case ESCROW:
+                return "ESCROW";
+            default:
+                return "UNKNOWN";
+        }
+    }
+
+    // returns true for the lock types a transaction may request
+    private static boolean isRequestType(int lockType) {
+        return lockType == READ || lockType == WRITE || lockType == UPDATE || lockType == ESCROW;
+    }
+
+    // returns the intention lock on the table to take before locking a row
+    // of it in lockType.
+    private static int intentionOf(int lockType) {
+        return (lockType == READ) ? INTENTION_READ : INTENTION_WRITE;
+    }
+
+    // counts a newly granted row lock of the transaction on a table and
+    // escalates the row locks to a table lock every time the count reaches
+    // a multiple of the escalation threshold.
+    private void countRowLock(TrxnLocks trxnLocks, int table) {
+        int n;
+        synchronized (trxnLocks) {
+            n = trxnLocks.countRowLock(table);
+        }
+        if (ESCALATION_THRESHOLD > 0 && n % ESCALATION_THRESHOLD == 0) {
+            trxnLocks.lockTableUsed = true;
+            synchronized (this.lockTable) {
+                escalate(trxnLocks, table);
+            }
+        }
+    }
+
+    // replaces all row locks xid holds on table with a READ or WRITE lock on
+    // the table itself, depending on the intention lock it holds. Escalation
+    // never waits: it is refused (and retried at the next multiple of the
+    // threshold) if some other transaction holds a conflicting lock on the
+    // table. Callers must hold the lockTable monitor.
+    private boolean escalate(TrxnLocks trxnLocks, int tableIndex) {
+        int xid = trxnLocks.getXId();
+        LockKey table = trxnLocks.getTable(tableIndex);
+        int tableLockType;
+        synchronized (trxnLocks) {
+            tableLockType = trxnLocks.getTableLockType(tableIndex);
+        }
+        if (tableLockType != INTENTION_READ && tableLockType != INTENTION_WRITE) {
+            return false;
+        }
+
+        int lockType = (tableLockType == INTENTION_WRITE) ? WRITE : READ;
+        DataObj tableObj = new DataObj(xid, table, lockType);
+        BitSet bConvert = new BitSet(2);
+        slowWord(table);
+        try {
+            if (lockConflict(tableObj, bConvert) >= 0) {
+                if (LockTrace.sampled(xid)) {
+                    LockTrace.record(LockTrace.ESCALATE, xid, table, lockType, -1);
+                }
+                clearSlowIfIdle(table);
+                return false;
+            }
+        } catch (DeadlockException | RedundantLockRequestException e) {
+            clearSlowIfIdle(table);
+            return false;
+        }
+        grantLockTableObj(new TrxnObj(xid, table, lockType), tableObj, bConvert);
+
+        // the row locks are now covered by the table lock. Nobody can be
+        // waiting for them: a waiter would hold an intention lock on the
+        // table, which the table lock just granted conflicts with.
+        Vector released = new Vector();
+        Vector vect = this.lockTable.elements(new TrxnObj(xid, null, -1));
+        int size = vect.size();
+        for (int i = 0; i < size; i++) {
+            TrxnObj trxnObj = (TrxnObj) vect.elementAt(i);
+            if (trxnObj.getClass() == TrxnObj.class && trxnObj.getXId() == xid
+                    && trxnObj.getLockKey().isRowOf(table)) {
+                this.lockTable.remove(trxnObj);
+                this.lockTable.remove(new DataObj(xid, trxnObj.getLockKey(), trxnObj.getLockType()));
+                released.addElement(trxnObj.getLockKey());
+            }
+        }
+        int count = released.size();
+        synchronized (trxnLocks) {
+            count += releaseWords(trxnLocks, table, released);
+            trxnLocks.setTableLockType(tableIndex, lockType);
+            trxnLocks.resetRowCount(tableIndex);
+        }
+        for (int i = 0; i < released.size(); i++) {
+            clearSlowIfIdle((LockKey) released.elementAt(i));
+        }
+        LockMetrics.escalations.increment();
+        if (LockTrace.sampled(xid)) {
+            LockTrace.record(LockTrace.ESCALATE, xid, table, lockType, count);
+        }
+        return true;
     }
 }
\ No newline at end of file
@@ -7,8 +7,18 @@ class LockManagerTest {
     static LockManager lm = new LockManager();
 
     public static void main(String[] args) {
+        LockTrace.setSampling(1);
         test1();
         test2();
+        test3();
+        test4();
+        test5();
+        test6();
+        test7();
+        test8();
+        System.out.println("Lock trace");
+        LockTrace.dump(System.out);
+        System.out.println(lm.getStats());
     }
 
     static void test1() {
@@ -38,6 +48,103 @@ class LockManagerTest {
         }
     }
 
+    static void test3() {
+        System.out.println("Lock escalation test");
+        LockManager.setEscalationThreshold(3);
+        // t1's three row locks on t are escalated to a READ lock on t, so t2
+        // cannot write another row of t until t1 is done
+        Transaction t1 = new Transaction(1, "rl t:1 rl t:2 rl t:3 sl 2000 ua");
+        Transaction t2 = new Transaction(2, "sl 500 rl t:4 wl t:5 ua");
+        t1.start();
+        t2.start();
+        try {
+            t1.join();
+            t2.join();
+        } catch (Exception e) {
+        }
+    }
+
+    static void test4() {
+        System.out.println("Lock timeout test");
+        // t2 fails at once without waiting, then times out after 200ms, and
+        // finally gets the lock when t1 releases it
+        Transaction t1 = new Transaction(1, "wl a sl 1000 ua");
+        Transaction t2 = new Transaction(2, "sl 100 wt 0 a wt 200 a wt 2000 a ua");
+        t1.start();
+        t2.start();
+        try {
+            t1.join();
+            t2.join();
+        } catch (Exception e) {
+        }
+    }
+
+    static void test5() {
+        System.out.println("Async lock test");
+        // t2 goes on while its request for a waits, and is told once t1
+        // releases a
+        Transaction t1 = new Transaction(1, "wl a sl 500 ua");
+        Transaction t2 = new Transaction(2, "sl 100 al a sl 1000 ua");
+        t1.start();
+        t2.start();
+        try {
+            t1.join();
+            t2.join();
+        } catch (Exception e) {
+        }
+    }
+
+    static void test6() {
+        System.out.println("Update lock test");
+        // t3 may read a while t1 holds an UPDATE lock on it, but t2 waits
+        // for t1 instead of deadlocking with it when both go on to write a
+        Transaction t1 = new Transaction(1, "ul a sl 500 wl a ua");
+        Transaction t2 = new Transaction(2, "sl 100 ul a wl a ua");
+        Transaction t3 = new Transaction(3, "sl 50 rl a sl 100 ua");
+        t1.start();
+        t2.start();
+        t3.start();
+        try {
+            t1.join();
+            t2.join();
+            t3.join();
+        } catch (Exception e) {
+        }
+    }
+
+    static void test7() {
+        System.out.println("Escrow lock test");
+        // t1 and t2 both hold ESCROW locks on t:a, t3 reads it once both
+        // are done
+        Transaction t1 = new Transaction(1, "el t:a sl 300 ua");
+        Transaction t2 = new Transaction(2, "sl 50 el t:a sl 50 ua");
+        Transaction t3 = new Transaction(3, "sl 100 rl t:a ua");
+        t1.start();
+        t2.start();
+        t3.start();
+        try {
+            t1.join();
+            t2.join();
+            t3.join();
+        } catch (Exception e) {
+        }
+    }
+
+    static void test8() {
+        System.out.println("Read lock release test");
+        // t1 gives up its READ lock on a once its reads are done, which lets
+        // t2 write a, but keeps its WRITE lock on b until t1 is done
+        Transaction t1 = new Transaction(1, "rl t:a wl t:b sl 300 ur sl 500 ua");
+        Transaction t2 = new Transaction(2, "sl 100 wl t:a wl t:b ua");
+        t1.start();
+        t2.start();
+        try {
+            t1.join();
+            t2.join();
+        } catch (Exception e) {
+        }
+    }
+
     static class Transaction extends Thread {
 
         int xid;
@@ -62,6 +169,32 @@ class LockManagerTest {
                         String param = st.nextToken();
                         lm.lock(xid, param, LockManager.WRITE);
                         System.out.println("Transaction " + xid + " got wl(" + param + ")");
+                    } else if (opcode.equalsIgnoreCase("ul")) {
+                        String param = st.nextToken();
+                        lm.lock(xid, param, LockManager.UPDATE);
+                        System.out.println("Transaction " + xid + " got ul(" + param + ")");
+                    } else if (opcode.equalsIgnoreCase("el")) {
+                        String param = st.nextToken();
+                        lm.lock(xid, param, LockManager.ESCROW);
+                        System.out.println("Transaction " + xid + " got el(" + param + ")");
+                    } else if (opcode.equalsIgnoreCase("wt")) {
+                        long timeout = Long.parseLong(st.nextToken());
+                        String param = st.nextToken();
+                        try {
+                            lm.lock(xid, LockKey.of(param), LockManager.WRITE, timeout);
+                            System.out.println("Transaction " + xid + " got wt(" + param + ")");
+                        } catch (LockTimeoutException te) {
+                            System.out.println("Transaction " + xid + ": wt(" + param + ") timed out");
+                        }
+                    } else if (opcode.equalsIgnoreCase("al")) {
+                        String param = st.nextToken();
+                        lm.lockAsync(xid, LockKey.of(param), LockManager.WRITE, LockManager.WAIT_DEFAULT)
+                                .whenComplete((granted, e) -> System.out.println("Transaction " + xid +
+                                        ((e == null) ? " got al(" + param + ")" : ": al(" + param + ") failed")));
+                        System.out.println("Transaction " + xid + " requested al(" + param + ")");
+                    } else if (opcode.equalsIgnoreCase("ur")) {
+                        lm.unlockReads(xid);
+                        System.out.println("Transaction " + xid + " released its read locks");
                     } else if (opcode.equalsIgnoreCase("ua")) {
                         lm.unlockAll(xid);
                     } else if (opcode.equalsIgnoreCase("sl")) {
@@ -0,0 +1,144 @@
+package lockmgr;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Live lock contention metrics of the lock manager: event counts, wait and
+ * hold time histograms, and the most contended data items. Counters are
+ * LongAdders so that the fast path can update them without contention;
+ * the hot key table is only updated when a request has to wait, and is
+ * guarded by the lockTable monitor like the wait queues.
+ */
+class LockMetrics {
+    /* histogram bucket 0 counts times below 1us, bucket i times in [2^(i-1), 2^i) us */
+    static final int BUCKETS = 32;
+
+    /* number of hot data items tracked */
+    private static final int HOT_KEYS = Math.max(Integer.getInteger("lockHotKeys", 16).intValue(), 1);
+
+    static final LongAdder grants = new LongAdder();
+
+    static final LongAdder conversions = new LongAdder();
+
+    static final LongAdder waits = new LongAdder();
+
+    static final LongAdder deadlocks = new LongAdder();
+
+    static final LongAdder timeouts = new LongAdder();
+
+    static final LongAdder cancelled = new LongAdder();
+
+    static final LongAdder escalations = new LongAdder();
+
+    private static final LongAdder[] waitTimes = newHistogram();
+
+    private static final LongAdder[] holdTimes = newHistogram();
+
+    // Space-Saving sketch of the data items requests had to wait for: data
+    // item -> {count, overestimation}. Once HOT_KEYS items are tracked, a
+    // new item replaces the one with the lowest count and inherits it as
+    // its overestimation.
+    private static HashMap<LockKey, long[]> hotKeys = new HashMap<>();
+
+    private static long since = System.currentTimeMillis();
+
+    private static LongAdder[] newHistogram() {
+        LongAdder[] histogram = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = new LongAdder();
+        }
+        return histogram;
+    }
+
+    private static int bucket(long nanos) {
+        long micros = nanos / 1000;
+        return Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+    }
+
+    // time a request spent in the wait queue, granted or not
+    static void recordWait(long nanos) {
+        waitTimes[bucket(nanos)].increment();
+    }
+
+    // time a transaction held locks, from its first lock request to
+    // unlockAll()
+    static void recordHold(long nanos) {
+        holdTimes[bucket(nanos)].increment();
+    }
+
+    // counts a request that had to wait for lockKey. Callers must hold the
+    // lockTable monitor.
+    static void recordContended(LockKey lockKey) {
+        long[] counter = hotKeys.get(lockKey);
+        if (counter == null) {
+            long min = 0;
+            if (hotKeys.size() >= HOT_KEYS) {
+                LockKey minKey = null;
+                for (Iterator<Map.Entry<LockKey, long[]>> iter = hotKeys.entrySet().iterator(); iter.hasNext(); ) {
+                    Map.Entry<LockKey, long[]> entry = iter.next();
+                    if (minKey == null || entry.getValue()[0] < min) {
+                        minKey = entry.getKey();
+                        min = entry.getValue()[0];
+                    }
+                }
+                hotKeys.remove(minKey);
+            }
+            counter = new long[]{min, min};
+            hotKeys.put(lockKey, counter);
+        }
+        counter[0]++;
+    }
+
+    // Callers must hold the lockTable monitor.
+    static LockStats snapshot() {
+        String[] keys = new String[hotKeys.size()];
+        long[] counts = new long[keys.length];
+        long[] errors = new long[keys.length];
+        int n = 0;
+        for (Iterator<Map.Entry<LockKey, long[]>> iter = hotKeys.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<LockKey, long[]> entry = iter.next();
+            // insertion sort by count, descending
+            int i = n++;
+            while (i > 0 && counts[i - 1] < entry.getValue()[0]) {
+                keys[i] = keys[i - 1];
+                counts[i] = counts[i - 1];
+                errors[i] = errors[i - 1];
+                i--;
+            }
+            keys[i] = entry.getKey().toString();
+            counts[i] = entry.getValue()[0];
+            errors[i] = entry.getValue()[1];
+        }
+        return new LockStats(since, grants.sum(), conversions.sum(), waits.sum(), deadlocks.sum(),
+                timeouts.sum(), cancelled.sum(), escalations.sum(), sum(waitTimes), sum(holdTimes), keys,
+                counts, errors);
+    }
+
+    // Callers must hold the lockTable monitor.
+    static void reset() {
+        grants.reset();
+        conversions.reset();
+        waits.reset();
+        deadlocks.reset();
+        timeouts.reset();
+        cancelled.reset();
+        escalations.reset();
+        for (int i = 0; i < BUCKETS; i++) {
+            waitTimes[i].reset();
+            holdTimes[i].reset();
+        }
+        hotKeys.clear();
+        since = System.currentTimeMillis();
+    }
+
+    private static long[] sum(LongAdder[] histogram) {
+        long[] counts = new long[histogram.length];
+        for (int i = 0; i < histogram.length; i++) {
+            counts[i] = histogram[i].sum();
+        }
+        return counts;
+    }
+}
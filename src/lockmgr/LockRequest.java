@@ -0,0 +1,43 @@
+package lockmgr;
+
+/**
+ * One lock request of a batch passed to LockManager.lockAll(): the data
+ * item to lock and the lock type.
+ */
+public final class LockRequest {
+    protected final LockKey lockKey;
+
+    protected final int lockType;
+
+    public LockRequest(LockKey lockKey, int lockType) {
+        this.lockKey = lockKey;
+        this.lockType = lockType;
+    }
+
+    public LockKey getLockKey() {
+        return this.lockKey;
+    }
+
+    public int getLockType() {
+        return this.lockType;
+    }
+
+    // orders requests by table, each table before its rows, so that
+    // transactions locking overlapping batches take the locks in the same
+    // order
+    static int compare(LockRequest r1, LockRequest r2) {
+        LockKey k1 = r1.lockKey;
+        LockKey k2 = r2.lockKey;
+        if (k1.tableId != k2.tableId) {
+            return (k1.tableId < k2.tableId) ? -1 : 1;
+        }
+        if ((k1.key == null) != (k2.key == null)) {
+            return (k1.key == null) ? -1 : 1;
+        }
+        return Long.compare(k1.hash, k2.hash);
+    }
+
+    public String toString() {
+        return LockManager.lockTypeName(this.lockType) + "(" + this.lockKey + ")";
+    }
+}
@@ -0,0 +1,191 @@
+package lockmgr;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Snapshot of the lock contention metrics of a lock manager, see
+ * LockManager.getStats(). Wait and hold times are histograms with
+ * power-of-two buckets: bucket 0 counts times below 1us, bucket i times in
+ * [2^(i-1), 2^i) us.
+ */
+public class LockStats implements Serializable {
+    protected long since;
+
+    protected long grants;
+
+    protected long conversions;
+
+    protected long waits;
+
+    protected long deadlocks;
+
+    protected long timeouts;
+
+    protected long cancelled;
+
+    protected long escalations;
+
+    protected long[] waitTimes;
+
+    protected long[] holdTimes;
+
+    protected String[] hotKeys;
+
+    protected long[] hotKeyCounts;
+
+    protected long[] hotKeyErrors;
+
+    LockStats(long since, long grants, long conversions, long waits, long deadlocks, long timeouts,
+              long cancelled, long escalations, long[] waitTimes, long[] holdTimes, String[] hotKeys, long[] hotKeyCounts,
+              long[] hotKeyErrors) {
+        this.since = since;
+        this.grants = grants;
+        this.conversions = conversions;
+        this.waits = waits;
+        this.deadlocks = deadlocks;
+        this.timeouts = timeouts;
+        this.cancelled = cancelled;
+        this.escalations = escalations;
+        this.waitTimes = waitTimes;
+        this.holdTimes = holdTimes;
+        this.hotKeys = hotKeys;
+        this.hotKeyCounts = hotKeyCounts;
+        this.hotKeyErrors = hotKeyErrors;
+    }
+
+    /* time the metrics were last reset, in milliseconds */
+    public long getSince() {
+        return since;
+    }
+
+    /* lock requests granted, not counting conversions */
+    public long getGrants() {
+        return grants;
+    }
+
+    public long getConversions() {
+        return conversions;
+    }
+
+    /* lock requests that had to wait */
+    public long getWaits() {
+        return waits;
+    }
+
+    /* waits that timed out and were reported as deadlocks */
+    public long getDeadlocks() {
+        return deadlocks;
+    }
+
+    /*
+     * requests with a NOWAIT or caller-supplied timeout that were not
+     * granted in time
+     */
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    /* waits cancelled because the transaction released its locks */
+    public long getCancelled() {
+        return cancelled;
+    }
+
+    public long getEscalations() {
+        return escalations;
+    }
+
+    public long[] getWaitTimes() {
+        return waitTimes;
+    }
+
+    public long[] getHoldTimes() {
+        return holdTimes;
+    }
+
+    /* the most contended data items, most contended first */
+    public String[] getHotKeys() {
+        return hotKeys;
+    }
+
+    /*
+     * number of requests that waited for each hot data item; may be
+     * overestimated by up to the matching getHotKeyErrors() value
+     */
+    public long[] getHotKeyCounts() {
+        return hotKeyCounts;
+    }
+
+    public long[] getHotKeyErrors() {
+        return hotKeyErrors;
+    }
+
+    /**
+     * Returns an upper bound of the given percentile of a histogram, in
+     * microseconds, or 0 if the histogram is empty.
+     */
+    public static long percentile(long[] histogram, double percentile) {
+        long total = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            total += histogram[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long count = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            count += histogram[i];
+            if (count >= rank) {
+                return 1L << i;
+            }
+        }
+        return 1L << (histogram.length - 1);
+    }
+
+    public String toString() {
+        StringBuffer buf = new StringBuffer();
+        buf.append("Lock statistics since ");
+        buf.append(new Date(since));
+        buf.append("\ngrants=");
+        buf.append(grants);
+        buf.append(" conversions=");
+        buf.append(conversions);
+        buf.append(" waits=");
+        buf.append(waits);
+        buf.append(" deadlocks=");
+        buf.append(deadlocks);
+        buf.append(" timeouts=");
+        buf.append(timeouts);
+        buf.append(" cancelled=");
+        buf.append(cancelled);
+        buf.append(" escalations=");
+        buf.append(escalations);
+        appendHistogram(buf, "wait time", waitTimes);
+        appendHistogram(buf, "hold time", holdTimes);
+        buf.append("\nhot data items:");
+        for (int i = 0; i < hotKeys.length; i++) {
+            buf.append("\n  ");
+            buf.append(hotKeys[i]);
+            buf.append(" waits=");
+            buf.append(hotKeyCounts[i]);
+            if (hotKeyErrors[i] > 0) {
+                buf.append(" (+-");
+                buf.append(hotKeyErrors[i]);
+                buf.append(")");
+            }
+        }
+        return buf.toString();
+    }
+
+    private static void appendHistogram(StringBuffer buf, String name, long[] histogram) {
+        buf.append("\n");
+        buf.append(name);
+        buf.append(" (us): p50<=");
+        buf.append(percentile(histogram, 50));
+        buf.append(" p99<=");
+        buf.append(percentile(histogram, 99));
+        buf.append(" max<=");
+        buf.append(percentile(histogram, 100));
+    }
+}
@@ -0,0 +1,12 @@
+package lockmgr;
+
+/**
+ * Thrown to indicate that a lock request with a NOWAIT or caller-supplied
+ * timeout was not granted in time. Unlike a plain DeadlockException the
+ * transaction need not be aborted; it may retry the request later.
+ */
+public class LockTimeoutException extends DeadlockException {
+    public LockTimeoutException(int xid, String msg) {
+        super("The lock request of transaction " + xid + " timed out:" + msg, xid);
+    }
+}
@@ -0,0 +1,168 @@
+package lockmgr;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * In-memory trace of lock events. Events are written into a fixed size ring
+ * buffer without any locking, the oldest ones being overwritten, and are
+ * only formatted when the trace is dumped. Tracing is off unless sampling
+ * is switched on, either with the system property lockTraceSampling or
+ * with setSampling().
+ */
+public class LockTrace {
+    /* event types */
+    public static final int REQUEST = 0;
+
+    public static final int GRANT = 1;
+
+    public static final int WAIT = 2;
+
+    public static final int CONVERT = 3;
+
+    public static final int DEADLOCK = 4;
+
+    public static final int RELEASE = 5;
+
+    public static final int ESCALATE = 6;
+
+    public static final int TIMEOUT = 7;
+
+    private static final String[] EVENT_NAMES = {
+            "REQUEST", "GRANT", "WAIT", "CONVERT", "DEADLOCK", "RELEASE", "ESCALATE", "TIMEOUT"
+    };
+
+    /* 0: tracing off, 1: all transactions, n: every n-th transaction */
+    private static volatile int sampling = Integer.getInteger("lockTraceSampling", 0).intValue();
+
+    /* number of events kept, a power of two */
+    private static final int SIZE = Integer.highestOneBit(
+            Math.max(Integer.getInteger("lockTraceSize", 8192).intValue(), 16));
+
+    /*
+     * Each event takes 4 longs: the sequence number it was recorded as (-1
+     * while it is being written), a nanoTime() timestamp, the event type,
+     * lock type and xid packed together, and an event specific argument.
+     */
+    private static final int SEQ = 0;
+
+    private static final int TIME = 1;
+
+    private static final int HEADER = 2;
+
+    private static final int ARG = 3;
+
+    private static final AtomicLongArray events = new AtomicLongArray(SIZE * 4);
+
+    private static final AtomicReferenceArray<LockKey> lockKeys = new AtomicReferenceArray<>(SIZE);
+
+    private static final AtomicLong cursor = new AtomicLong();
+
+    private static final long startTime = System.nanoTime();
+
+    static {
+        for (int i = 0; i < SIZE; i++) {
+            events.set(i * 4 + SEQ, -1);
+        }
+    }
+
+    /**
+     * Sets which transactions are traced.
+     *
+     * @param n 0 switches tracing off, 1 traces all transactions, n traces
+     *          the transactions whose xid is a multiple of n.
+     */
+    public static void setSampling(int n) {
+        sampling = Math.max(n, 0);
+    }
+
+    public static int getSampling() {
+        return sampling;
+    }
+
+    // returns true if the events of xid are traced
+    static boolean sampled(int xid) {
+        int n = sampling;
+        return n != 0 && (n == 1 || xid % n == 0);
+    }
+
+    // appends an event to the ring. lockType is the lock type the event is
+    // about (-1 for none), the mode held afterwards for CONVERT; arg is the
+    // conflicting lock type for WAIT (-1 if the request merely queued up
+    // behind other waiters), the number of locks released for RELEASE and
+    // ESCALATE (-1 if the escalation was refused), and 0 otherwise.
+    static void record(int event, int xid, LockKey lockKey, int lockType, int arg) {
+        long seq = cursor.getAndIncrement();
+        int slot = (int) seq & (SIZE - 1);
+        int base = slot * 4;
+        events.lazySet(base + SEQ, -1);
+        events.lazySet(base + TIME, System.nanoTime());
+        events.lazySet(base + HEADER, ((long) event << 40) | ((long) (lockType & 0xff) << 32) | (xid & 0xffffffffL));
+        events.lazySet(base + ARG, arg);
+        lockKeys.lazySet(slot, lockKey);
+        // publishes the event
+        events.set(base + SEQ, seq);
+    }
+
+    /**
+     * Prints the events still in the ring, oldest first. Events recorded
+     * while the dump is in progress may be skipped.
+     */
+    public static void dump(PrintStream out) {
+        long end = cursor.get();
+        long start = Math.max(end - SIZE, 0);
+        for (long seq = start; seq < end; seq++) {
+            int slot = (int) seq & (SIZE - 1);
+            int base = slot * 4;
+            if (events.get(base + SEQ) != seq) {
+                continue;
+            }
+            long time = events.get(base + TIME);
+            long header = events.get(base + HEADER);
+            long arg = events.get(base + ARG);
+            LockKey lockKey = lockKeys.get(slot);
+            if (events.get(base + SEQ) != seq) {
+                // overwritten while reading it
+                continue;
+            }
+            out.println(format(time, header, arg, lockKey));
+        }
+    }
+
+    private static String format(long time, long header, long arg, LockKey lockKey) {
+        int event = (int) (header >>> 40);
+        int lockType = (byte) (header >>> 32);
+        int xid = (int) header;
+        StringBuffer buf = new StringBuffer();
+        buf.append((time - startTime) / 1000);
+        buf.append("us ");
+        buf.append(EVENT_NAMES[event]);
+        buf.append(" xid=");
+        buf.append(xid);
+        if (lockKey != null) {
+            buf.append(" data=");
+            buf.append(lockKey);
+        }
+        if (lockType >= 0) {
+            buf.append(" lockType=");
+            buf.append(LockManager.lockTypeName(lockType));
+        }
+        switch (event) {
+            case WAIT:
+                buf.append((arg < 0) ? " behind waiters" : " conflicting=" + LockManager.lockTypeName((int) arg));
+                break;
+            case RELEASE:
+                buf.append(" released=");
+                buf.append(arg);
+                break;
+            case ESCALATE:
+                buf.append((arg < 0) ? " refused" : " released=" + arg);
+                break;
+            default:
+                break;
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,137 @@
+package lockmgr;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * State word of a data item. Uncontended lock requests are granted by a
+ * compare-and-set on this word alone, without touching the lock table or
+ * taking any monitor.
+ *
+ * bits  0-15: number of transactions holding a READ lock through the word
+ * bits 16-31: number of transactions holding an INTENTION_READ lock
+ * bits 32-47: number of transactions holding an INTENTION_WRITE lock
+ * bit     48: a transaction holds a WRITE lock through the word
+ * bit     49: SLOW, the data item has lock table entries or waiters; locks
+ *             can only be granted through the lock table
+ * bit     50: RETIRED, the word has been dropped from the word table
+ * bit     51: a transaction holds an UPDATE lock through the word
+ * bits 52-63: number of transactions holding an ESCROW lock
+ */
+class LockWord extends AtomicLong {
+    private static final long COUNT_MASK = (1L << 16) - 1;
+
+    static final long WRITER = 1L << 48;
+
+    static final long SLOW = 1L << 49;
+
+    static final long RETIRED = 1L << 50;
+
+    static final long UPDATER = 1L << 51;
+
+    private static final int ESCROW_SHIFT = 52;
+
+    private static final long ESCROW_MASK = (1L << 12) - 1;
+
+    protected final LockKey lockKey;
+
+    protected final int hash;
+
+    LockWord(LockKey lockKey) {
+        super(0);
+        this.lockKey = lockKey;
+        this.hash = lockKey.hashCode();
+    }
+
+    public LockKey getLockKey() {
+        return lockKey;
+    }
+
+    // returns the number of transactions holding lockType through the word
+    static int holders(long state, int lockType) {
+        if (lockType == LockManager.WRITE) {
+            return ((state & WRITER) == 0) ? 0 : 1;
+        }
+        if (lockType == LockManager.UPDATE) {
+            return ((state & UPDATER) == 0) ? 0 : 1;
+        }
+        if (lockType == LockManager.ESCROW) {
+            return (int) ((state >>> ESCROW_SHIFT) & ESCROW_MASK);
+        }
+        return (int) ((state >>> shift(lockType)) & COUNT_MASK);
+    }
+
+    private static int shift(int lockType) {
+        return (lockType == LockManager.READ) ? 0 : (lockType - 1) * 16;
+    }
+
+    private static long unit(int lockType) {
+        if (lockType == LockManager.WRITE) {
+            return WRITER;
+        }
+        if (lockType == LockManager.UPDATE) {
+            return UPDATER;
+        }
+        if (lockType == LockManager.ESCROW) {
+            return 1L << ESCROW_SHIFT;
+        }
+        return 1L << shift(lockType);
+    }
+
+    // grants lockType to a transaction holding held (-1 for nothing) through
+    // the word, unless the data item is in SLOW mode or lockType conflicts
+    // with the locks other transactions hold through the word.
+    boolean tryLock(int held, int lockType) {
+        while (true) {
+            long state = get();
+            if ((state & (SLOW | RETIRED)) != 0) {
+                return false;
+            }
+            long others = (held < 0) ? state : state - unit(held);
+            if (LockManager.conflictingLockType(lockType, others, -1) >= 0
+                    || holders(others, lockType) == ((lockType == LockManager.ESCROW) ? ESCROW_MASK : COUNT_MASK)) {
+                return false;
+            }
+            if (compareAndSet(state, others + unit(lockType))) {
+                return true;
+            }
+        }
+    }
+
+    // releases lockType; returns true if the data item is in SLOW mode, in
+    // which case waiters may have been waiting for the lock just released.
+    boolean release(int lockType) {
+        long state;
+        do {
+            state = get();
+        } while (!compareAndSet(state, state - unit(lockType)));
+        return (state & SLOW) != 0;
+    }
+
+    // switches the data item to SLOW mode; returns false if the word has been
+    // retired and must be looked up again.
+    boolean setSlow() {
+        long state;
+        do {
+            state = get();
+            if ((state & RETIRED) != 0) {
+                return false;
+            }
+            if ((state & SLOW) != 0) {
+                return true;
+            }
+        } while (!compareAndSet(state, state | SLOW));
+        return true;
+    }
+
+    void clearSlow() {
+        long state;
+        do {
+            state = get();
+        } while ((state & SLOW) != 0 && !compareAndSet(state, state & ~SLOW));
+    }
+
+    // retires the word if nobody holds or waits for the data item
+    boolean retire() {
+        return compareAndSet(0, RETIRED);
+    }
+}
@@ -0,0 +1,175 @@
+package lockmgr;
+
+import java.util.Arrays;
+
+/*
+ * Locks a transaction holds through LockWords, and the table-level locks it
+ * holds, so that its lock requests can be answered without the lock table.
+ * Guarded by its own monitor, which only the transaction's threads and
+ * whoever releases its locks ever take.
+ */
+class TrxnLocks {
+    private static final int NONE = -1;
+
+    protected final int xid;
+
+    // when the transaction first requested a lock, for the hold time
+    // metrics
+    protected final long startTime = System.nanoTime();
+
+    // set once unlockAll() has released the locks of the transaction
+    protected volatile boolean released = false;
+
+    // set before the transaction first goes through the lock table; until
+    // then all of its locks are held through words
+    protected volatile boolean lockTableUsed = false;
+
+    // open addressing hash table LockWord -> lock type held through it
+    private LockWord[] words = new LockWord[16];
+
+    private int[] lockTypes = new int[16];
+
+    private int wordCount = 0;
+
+    // tables the transaction holds a table-level lock on, with the lock type
+    // and the number of row locks it holds on each
+    private LockKey[] tables = new LockKey[4];
+
+    private int[] tableLockTypes = new int[4];
+
+    private int[] rowCounts = new int[4];
+
+    private int tableCount = 0;
+
+    TrxnLocks(int xid) {
+        this.xid = xid;
+    }
+
+    public int getXId() {
+        return xid;
+    }
+
+    // returns the lock type held through word, or -1
+    int getLockType(LockWord word) {
+        int mask = words.length - 1;
+        for (int i = word.hash & mask; words[i] != null; i = (i + 1) & mask) {
+            if (words[i] == word) {
+                return lockTypes[i];
+            }
+        }
+        return NONE;
+    }
+
+    // records the lock type held through word; -1 once it has been released
+    void setLockType(LockWord word, int lockType) {
+        int mask = words.length - 1;
+        int i = word.hash & mask;
+        for (; words[i] != null; i = (i + 1) & mask) {
+            if (words[i] == word) {
+                lockTypes[i] = lockType;
+                return;
+            }
+        }
+        if (lockType == NONE) {
+            return;
+        }
+        words[i] = word;
+        lockTypes[i] = lockType;
+        if (++wordCount * 2 > words.length) {
+            resize();
+        }
+    }
+
+    private void resize() {
+        LockWord[] oldWords = words;
+        int[] oldLockTypes = lockTypes;
+        words = new LockWord[oldWords.length * 2];
+        lockTypes = new int[oldWords.length * 2];
+        wordCount = 0;
+        for (int i = 0; i < oldWords.length; i++) {
+            if (oldWords[i] != null && oldLockTypes[i] != NONE) {
+                setLockType(oldWords[i], oldLockTypes[i]);
+            }
+        }
+    }
+
+    int size() {
+        return words.length;
+    }
+
+    // slot access, to walk through all words
+    LockWord wordAt(int i) {
+        return words[i];
+    }
+
+    int lockTypeAt(int i) {
+        return lockTypes[i];
+    }
+
+    void clearAt(int i) {
+        lockTypes[i] = NONE;
+    }
+
+    // returns the index of the table lockKey is a row of, or -1 if the
+    // transaction holds no lock on that table yet
+    int tableIndexOf(LockKey lockKey) {
+        LockKey tableKey = lockKey.getTableKey();
+        for (int i = 0; i < tableCount; i++) {
+            if (tables[i] == tableKey) {
+                return i;
+            }
+        }
+        return NONE;
+    }
+
+    // adds tableKey, or returns its index if a concurrent request of the
+    // transaction added it first
+    int addTable(LockKey tableKey, int lockType) {
+        int table = tableIndexOf(tableKey);
+        if (table >= 0) {
+            return table;
+        }
+        if (tableCount == tables.length) {
+            tables = Arrays.copyOf(tables, tableCount * 2);
+            tableLockTypes = Arrays.copyOf(tableLockTypes, tableCount * 2);
+            rowCounts = Arrays.copyOf(rowCounts, tableCount * 2);
+        }
+        tables[tableCount] = tableKey;
+        tableLockTypes[tableCount] = lockType;
+        rowCounts[tableCount] = 0;
+        return tableCount++;
+    }
+
+    int tableCount() {
+        return tableCount;
+    }
+
+    // forgets the table-level lock at index table, once it is released
+    void removeTable(int table) {
+        tableCount--;
+        tables[table] = tables[tableCount];
+        tableLockTypes[table] = tableLockTypes[tableCount];
+        rowCounts[table] = rowCounts[tableCount];
+        tables[tableCount] = null;
+    }
+
+    LockKey getTable(int table) {
+        return tables[table];
+    }
+
+    int getTableLockType(int table) {
+        return tableLockTypes[table];
+    }
+
+    void setTableLockType(int table, int lockType) {
+        tableLockTypes[table] = lockType;
+    }
+
+    int countRowLock(int table) {
+        return ++rowCounts[table];
+    }
+
+    void resetRowCount(int table) {
+        rowCounts[table] = 0;
+    }
+}
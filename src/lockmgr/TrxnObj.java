@@ -5,7 +5,15 @@ public class TrxnObj extends XObj {
 
     public static final int WRITE = 1;
 
-    protected String strData = null;
+    public static final int INTENTION_READ = 2;
+
+    public static final int INTENTION_WRITE = 3;
+
+    public static final int UPDATE = 4;
+
+    public static final int ESCROW = 5;
+
+    protected LockKey lockKey = null;
 
     protected int lockType = -1;
 
@@ -14,15 +22,15 @@ public class TrxnObj extends XObj {
 
     TrxnObj() {
         super();
-        this.strData = null;
+        this.lockKey = null;
         this.lockType = -1;
     }
 
-    TrxnObj(int xid, String strData, int lockType) {
+    TrxnObj(int xid, LockKey lockKey, int lockType) {
         super(xid);
-        this.strData = new String(strData);
+        this.lockKey = lockKey;
 
-        if ((lockType == TrxnObj.READ) || (lockType == TrxnObj.WRITE)) {
+        if (isValidLockType(lockType)) {
             this.lockType = lockType;
         } else {
             this.lockType = -1; // invalid lock type.
@@ -30,7 +38,7 @@ public class TrxnObj extends XObj {
     }
 
     public String toString() {
-        String outString = new String(super.toString() + "::strData(" + this.strData + ")::lockType(" + this.lockType
+        String outString = new String(super.toString() + "::lockKey(" + this.lockKey + ")::lockType(" + this.lockType
                 + ")");
         return outString;
     }
@@ -42,7 +50,7 @@ public class TrxnObj extends XObj {
 
         if (t instanceof TrxnObj) {
             if (this.xid == ((TrxnObj) t).getXId()) {
-                if (this.strData.equals(((TrxnObj) t).getDataName())) {
+                if (this.lockKey.equals(((TrxnObj) t).getLockKey())) {
                     if (this.lockType == ((TrxnObj) t).getLockType()) {
                         return true;
                     }
@@ -53,21 +61,20 @@ public class TrxnObj extends XObj {
     }
 
     public Object clone() {
-        TrxnObj t = new TrxnObj(this.xid, this.strData, this.lockType);
+        TrxnObj t = new TrxnObj(this.xid, this.lockKey, this.lockType);
         return t;
     }
 
-    public void setDataName(String strData) {
-        this.strData = new String(strData);
+    public void setLockKey(LockKey lockKey) {
+        this.lockKey = lockKey;
     }
 
-    public String getDataName() {
-        String strData = new String(this.strData);
-        return strData;
+    public LockKey getLockKey() {
+        return this.lockKey;
     }
 
     public void setLockType(int lockType) {
-        if ((lockType == TrxnObj.READ) || (lockType == TrxnObj.WRITE)) {
+        if (isValidLockType(lockType)) {
             this.lockType = lockType;
         }
     }
@@ -75,4 +82,8 @@ public class TrxnObj extends XObj {
     public int getLockType() {
         return this.lockType;
     }
+
+    static boolean isValidLockType(int lockType) {
+        return (lockType >= TrxnObj.READ) && (lockType <= TrxnObj.ESCROW);
+    }
 }
\ No newline at end of file
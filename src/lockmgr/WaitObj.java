@@ -1,11 +1,38 @@
 package lockmgr;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+
 public class WaitObj extends DataObj {
+    /* states of a queued lock request */
+    static final int WAITING = 0;
+
+    static final int GRANTED = 1;
+
+    static final int CANCELLED = 2;
+
     protected Thread thread = null;
 
+    // completed instead of waking thread up, for requests made through
+    // lockAsync()
+    protected CompletableFuture<Boolean> future = null;
+
+    // fires when an asynchronous request has waited for too long
+    protected ScheduledFuture<?> timeoutTask = null;
+
+    // when the request started waiting
+    protected long startTime = System.nanoTime();
+
+    // true if the transaction already holds a weaker lock on the data item
+    protected boolean conversion = false;
+
+    // written by the thread granting or cancelling the request, read by the
+    // parked waiter
+    protected volatile int state = WAITING;
+
     // The data members inherited are
     // XObj:: protected int xid;
-    // TrxnObj:: protected String strData;
+    // TrxnObj:: protected LockKey lockKey;
     // TrxnObj:: protected int lockType;
 
     WaitObj() {
@@ -13,17 +40,57 @@ public class WaitObj extends DataObj {
         thread = null;
     }
 
-    WaitObj(int xid, String strData, int lockType) {
-        super(xid, strData, lockType);
+    WaitObj(int xid, LockKey lockKey, int lockType) {
+        super(xid, lockKey, lockType);
         thread = null;
     }
 
-    WaitObj(int xid, String strData, int lockType, Thread thread) {
-        super(xid, strData, lockType);
+    WaitObj(int xid, LockKey lockKey, int lockType, Thread thread) {
+        super(xid, lockKey, lockType);
         this.thread = thread;
     }
 
+    WaitObj(int xid, LockKey lockKey, int lockType, Thread thread, boolean conversion) {
+        super(xid, lockKey, lockType);
+        this.thread = thread;
+        this.conversion = conversion;
+    }
+
+    WaitObj(int xid, LockKey lockKey, int lockType, CompletableFuture<Boolean> future, boolean conversion) {
+        super(xid, lockKey, lockType);
+        this.future = future;
+        this.conversion = conversion;
+    }
+
     public Thread getThread() {
         return this.thread;
     }
-}
\ No newline at end of file
+
+    CompletableFuture<Boolean> getFuture() {
+        return this.future;
+    }
+
+    ScheduledFuture<?> getTimeoutTask() {
+        return this.timeoutTask;
+    }
+
+    void setTimeoutTask(ScheduledFuture<?> timeoutTask) {
+        this.timeoutTask = timeoutTask;
+    }
+
+    long getStartTime() {
+        return this.startTime;
+    }
+
+    public boolean isConversion() {
+        return this.conversion;
+    }
+
+    public int getState() {
+        return this.state;
+    }
+
+    void setState(int state) {
+        this.state = state;
+    }
+}
@@ -0,0 +1,254 @@
+package transaction;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the transaction manager.
+ * <p>
+ * The log is a sequence of typed binary records (type, xid, participant
+ * ids), each followed by a CRC, so a record torn by a crash ends the
+ * replay instead of corrupting it. Records go to segment files
+ * &lt;prefix&gt;-&lt;n&gt;.log. When a segment grows past its size, the
+ * log rolls over to a new one, which starts with the records still live,
+ * and drops the older ones: the log stays about the size of a segment,
+ * and a transaction costs a constant number of appends.
+ * <p>
+ * The TM only logs committed transactions (presumed abort): a COMMIT
+ * record, forced to disk before any participant is told, and an END
+ * record once all of them know, which is not forced.
+ */
+public class CoordinatorLog {
+    // record types
+    public static final byte COMMIT = 1;
+    public static final byte END = 2;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String TMP_SUFFIX = ".tmp" + SEGMENT_SUFFIX;
+    // bound on the length of a record read back, against torn lengths
+    private static final int MAX_RECORD = 1 << 16;
+
+    private final File dir;
+    private final String prefix;
+    private final long segmentSize;
+
+    // committed transactions not ended yet, xid -> participant ids
+    private final HashMap<Integer, List<String>> live = new HashMap<>();
+
+    private int segment;
+    private FileOutputStream out;
+    // bytes appended to the current segment
+    private long written;
+
+    public CoordinatorLog(File dir, String prefix, long segmentSize) {
+        this.dir = dir;
+        this.prefix = prefix + "-";
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Reads the log and opens it for appending; to be called once, before
+     * the other methods.
+     *
+     * @return the committed transactions that have not ended, xid ->
+     * participant ids.
+     */
+    public synchronized Map<Integer, List<String>> replay() throws IOException {
+        dir.mkdirs();
+        int[] segments = segments();
+        segment = (segments.length == 0) ? 0 : segments[segments.length - 1];
+        // a segment starts with all records live when it was created, the
+        // last one is enough
+        if (segments.length > 0)
+            replay(segmentFile(segment));
+        rollOver();
+        return new HashMap<>(live);
+    }
+
+    // replays the records of one segment, up to the end or to a record torn
+    // by a crash: nothing after it was acknowledged
+    private void replay(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                byte[] body;
+                try {
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_RECORD)
+                        return;
+                    body = new byte[length];
+                    in.readFully(body);
+                    if (in.readLong() != checksum(body))
+                        return;
+                } catch (EOFException e) {
+                    return;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(body)));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void apply(DataInputStream record) throws IOException {
+        byte type = record.readByte();
+        int xid = record.readInt();
+        if (type == COMMIT) {
+            int n = record.readShort();
+            List<String> participants = new ArrayList<>(n);
+            for (int i = 0; i < n; i++)
+                participants.add(record.readUTF());
+            live.put(xid, participants);
+        } else if (type == END) {
+            live.remove(xid);
+        }
+    }
+
+    /**
+     * Appends the COMMIT record of xid and forces the log to disk.
+     */
+    public synchronized void commit(int xid, List<String> participants) throws IOException {
+        // appended before xid is live: a roll over in between would write
+        // the record to the new segment with the live ones, then again
+        append(COMMIT, xid, participants);
+        out.getChannel().force(false);
+        live.put(xid, new ArrayList<>(participants));
+    }
+
+    /**
+     * Appends the END record of xid, without forcing it: a crash may lose
+     * it, then the replay returns xid once more.
+     */
+    public synchronized void end(int xid) throws IOException {
+        if (live.remove(xid) == null)
+            return;
+        append(END, xid, null);
+    }
+
+    public synchronized void close() throws IOException {
+        if (out != null)
+            out.close();
+        out = null;
+    }
+
+    private void append(byte type, int xid, List<String> participants) throws IOException {
+        if (written >= segmentSize)
+            rollOver();
+        write(type, xid, participants);
+    }
+
+    private void write(byte type, int xid, List<String> participants) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bytes);
+        body.writeByte(type);
+        body.writeInt(xid);
+        if (type == COMMIT) {
+            body.writeShort(participants.size());
+            for (String participant : participants)
+                body.writeUTF(participant);
+        }
+        body.flush();
+        byte[] record = bytes.toByteArray();
+
+        ByteArrayOutputStream framed = new ByteArrayOutputStream(record.length + 12);
+        DataOutputStream frame = new DataOutputStream(framed);
+        frame.writeInt(record.length);
+        frame.write(record);
+        frame.writeLong(checksum(record));
+        frame.flush();
+        out.write(framed.toByteArray());
+        written += framed.size();
+    }
+
+    // starts a new segment with the live records, then deletes the
+    // segments before it
+    private void rollOver() throws IOException {
+        if (out != null)
+            out.close();
+        int next = segment + 1;
+        File tmp = new File(dir, prefix + next + TMP_SUFFIX);
+        out = new FileOutputStream(tmp);
+        for (Map.Entry<Integer, List<String>> entry : live.entrySet())
+            write(COMMIT, entry.getKey(), entry.getValue());
+        out.getChannel().force(false);
+        out.close();
+        // the new segment only counts once it holds all live records
+        if (!tmp.renameTo(segmentFile(next)))
+            throw new IOException("Can't roll over to segment " + next);
+        // the rename is only durable once the directory is, and the older
+        // segments are deleted below
+        forceDir();
+        out = new FileOutputStream(segmentFile(next), true);
+        // the live records do not count against the segment size, or a
+        // large live set would roll over on every append
+        written = 0;
+        int[] segments = segments();
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i] < next)
+                segmentFile(segments[i]).delete();
+        }
+        segment = next;
+    }
+
+    private void forceDir() throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            return; // directories can't be opened on this platform
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private File segmentFile(int n) {
+        return new File(dir, prefix + n + SEGMENT_SUFFIX);
+    }
+
+    // the numbers of the segments in the log, in order
+    private int[] segments() {
+        String[] names = dir.list();
+        if (names == null)
+            return new int[0];
+        int[] segments = new int[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (!name.startsWith(prefix) || !name.endsWith(SEGMENT_SUFFIX) || name.endsWith(TMP_SUFFIX))
+                continue;
+            try {
+                int n = Integer.parseInt(
+                        name.substring(prefix.length(), name.length() - SEGMENT_SUFFIX.length()));
+                segments[count++] = n;
+            } catch (NumberFormatException e) {
+            }
+        }
+        segments = Arrays.copyOf(segments, count);
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private static long checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,237 @@
+package transaction;
+
+import java.rmi.Naming;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tells the participants of transactions their outcome in the background,
+ * once the TM has decided it, so that commit() and abort() need not wait
+ * for them.
+ * <p>
+ * The outcomes due to an RM are sent to it in batches, see
+ * ResourceManager.commitAll() and abortAll(). A batch that fails is sent
+ * again after a delay, doubled on each failure, to the RM looked up again
+ * by name as it may have restarted. After MAX_ATTEMPTS failures the RM is
+ * left to ask the TM for the outcome, when it reconnects or once it has
+ * held the transaction for long, see ResourceManagerImpl. The queue is
+ * durable through the TM log: a commit is only ended there once all of its
+ * participants know it, and the TM recovery queues it again before.
+ */
+public class OutcomeDelivery {
+    // delay before the first retry of a failed batch, doubled on each
+    // failure up to RETRY_MAX
+    private static final long RETRY_BASE = 100;
+    private static final long RETRY_MAX = 5000;
+    // failed sends of an outcome before its RM is left to ask for it
+    private static final int MAX_ATTEMPTS = 10;
+    // bound on the batches in flight at once
+    private static final int DELIVERY_THREADS = 4;
+
+    public interface Listener {
+        // all participants of xid have been told its outcome, or are left
+        // to ask for it
+        void delivered(int xid, boolean commit);
+
+        // rm, whose name may be null, could not be told the outcome of xid
+        void undelivered(int xid, boolean commit, String rm);
+    }
+
+    // an outcome due to one participant
+    private static class Notice {
+        final int xid;
+        final boolean commit;
+        final String rm; // null if not known
+        ResourceManager stub; // null to look rm up, kept if rm is null
+        int attempts;
+        long due;
+
+        Notice(int xid, boolean commit, String rm, ResourceManager stub) {
+            this.xid = xid;
+            this.commit = commit;
+            this.rm = rm;
+            this.stub = stub;
+        }
+
+        // the notices sent in one batch share it
+        Object batchKey() {
+            return ((rm != null) ? rm : stub) + (commit ? "/commit" : "/abort");
+        }
+    }
+
+    private final ExecutorService executor;
+    private final Listener listener;
+    private final String rmiPort;
+
+    // notices to be sent, guarded by this
+    private final List<Notice> notices = new LinkedList<>();
+    // xid -> number of its notices not delivered yet, guarded by this
+    private final Map<Integer, Integer> remaining = new HashMap<>();
+
+    public OutcomeDelivery(Listener listener) {
+        // not shared with the calls of the TM to participants, so that
+        // neither can starve the other
+        this.executor = Executors.newFixedThreadPool(DELIVERY_THREADS, r -> {
+            Thread thread = new Thread(r, "tm-delivery-send");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.listener = listener;
+        String port = System.getProperty("rmiPort");
+        this.rmiPort = (port == null || port.equals("")) ? "" : "//:" + port + "/";
+
+        Thread thread = new Thread(this::run, "tm-delivery");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues the outcome of xid for its participants.
+     *
+     * @param participants participant stub -> name, null if not known. An
+     *                     RM whose name is not known is retried on its stub.
+     */
+    public void deliver(int xid, boolean commit, Map<ResourceManager, String> participants) {
+        List<Notice> queued = new ArrayList<>();
+        for (Map.Entry<ResourceManager, String> entry : participants.entrySet())
+            queued.add(new Notice(xid, commit, entry.getValue(), entry.getKey()));
+        queue(xid, commit, queued);
+    }
+
+    /**
+     * Queues the commit of xid for its participants, found by name, after a
+     * restart of the TM.
+     */
+    public void redeliver(int xid, List<String> participants) {
+        List<Notice> queued = new ArrayList<>();
+        for (String rm : participants)
+            queued.add(new Notice(xid, true, rm, null));
+        queue(xid, true, queued);
+    }
+
+    private void queue(int xid, boolean commit, List<Notice> queued) {
+        if (queued.isEmpty()) {
+            listener.delivered(xid, commit);
+            return;
+        }
+        synchronized (this) {
+            // xid may be queued again before its earlier notices are done
+            remaining.merge(xid, queued.size(), Integer::sum);
+            notices.addAll(queued);
+            notifyAll();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            List<Notice> due;
+            try {
+                due = takeDue();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Map<Object, List<Notice>> batches = new LinkedHashMap<>();
+            for (Notice notice : due)
+                batches.computeIfAbsent(notice.batchKey(), k -> new ArrayList<>()).add(notice);
+            for (List<Notice> batch : batches.values())
+                executor.execute(() -> send(batch));
+        }
+    }
+
+    // waits for notices due to be sent, and takes them out of the queue
+    private synchronized List<Notice> takeDue() throws InterruptedException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            long next = Long.MAX_VALUE;
+            List<Notice> due = new ArrayList<>();
+            for (Iterator<Notice> iter = notices.iterator(); iter.hasNext(); ) {
+                Notice notice = iter.next();
+                if (notice.due <= now) {
+                    due.add(notice);
+                    iter.remove();
+                } else {
+                    next = Math.min(next, notice.due);
+                }
+            }
+            if (!due.isEmpty())
+                return due;
+            if (next == Long.MAX_VALUE)
+                wait();
+            else
+                wait(next - now);
+        }
+    }
+
+    private void send(List<Notice> batch) {
+        Notice first = batch.get(0);
+        List<Integer> xids = new ArrayList<>(batch.size());
+        for (Notice notice : batch)
+            xids.add(notice.xid);
+        try {
+            ResourceManager rm = first.stub;
+            if (rm == null) {
+                if (first.rm == null)
+                    throw new IllegalStateException("no RM to send to");
+                rm = (ResourceManager) Naming.lookup(rmiPort + first.rm);
+            }
+            if (first.commit)
+                rm.commitAll(xids);
+            else
+                rm.abortAll(xids);
+            done(batch);
+        } catch (Exception e) {
+            System.out.println("outcome of " + xids + " not delivered to " + first.rm + ": " + e);
+            failed(batch);
+        }
+    }
+
+    private void failed(List<Notice> batch) {
+        List<Notice> givenUp = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (Notice notice : batch) {
+                // the rm may have restarted, look it up again if it can be
+                if (notice.rm != null)
+                    notice.stub = null;
+                if (++notice.attempts >= MAX_ATTEMPTS) {
+                    givenUp.add(notice);
+                } else {
+                    notice.due = now + Math.min(RETRY_BASE << (notice.attempts - 1), RETRY_MAX);
+                    notices.add(notice);
+                }
+            }
+            notifyAll();
+        }
+        for (Notice notice : givenUp)
+            listener.undelivered(notice.xid, notice.commit, notice.rm);
+        done(givenUp);
+    }
+
+    // counts the notices of batch as done
+    private void done(List<Notice> batch) {
+        List<Notice> delivered = new ArrayList<>();
+        synchronized (this) {
+            for (Notice notice : batch) {
+                Integer count = remaining.get(notice.xid);
+                if (count == null)
+                    continue; // not counted, nothing to wait for
+                int left = count - 1;
+                if (left == 0) {
+                    remaining.remove(notice.xid);
+                    delivered.add(notice);
+                } else {
+                    remaining.put(notice.xid, left);
+                }
+            }
+        }
+        for (Notice notice : delivered)
+            listener.delivered(notice.xid, notice.commit);
+    }
+}
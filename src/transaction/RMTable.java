@@ -5,14 +5,24 @@
 package transaction;
 
 import lockmgr.DeadlockException;
+import lockmgr.LockKey;
 import lockmgr.LockManager;
+import lockmgr.LockRequest;
+import transaction.entity.ColumnGroupKey;
 import transaction.entity.ResourceItem;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author RAdmin
@@ -23,12 +33,58 @@ public class RMTable implements Serializable {
 
     transient protected RMTable parent;
 
+    // lock row (the key, or a ColumnGroupKey of it) -> lock type held
     protected Hashtable locks = new Hashtable();
 
+    // key -> net escrow delta of the transaction on the numAvail of the
+    // row, applied at commit
+    protected Hashtable escrows = new Hashtable();
+
+    // row key -> xid -> net escrow decrement the transaction has pending
+    // on the row, in this (committed) table; see getPendingDecrements().
+    // Guarded by the table monitor.
+    transient protected Hashtable pendingDecrements;
+
+    // xids whose escrow deltas have been applied to this (committed)
+    // table, so that a commit redone after a crash applies them only once
+    protected HashSet escrowsApplied = new HashSet();
+
+    // lock row -> version of the row in this (committed) table, bumped by
+    // every commit writing it
+    protected Hashtable versions = new Hashtable();
+
+    // true if the transaction runs optimistically: its locks are only
+    // recorded, with the versions of the rows read, and taken by
+    // validate() at prepare
+    protected boolean optimistic = false;
+
+    // lock row -> version of the committed row when the optimistic
+    // transaction first used it
+    protected Hashtable readVersions = new Hashtable();
+
+    // true once validate() has taken the locks of an optimistic transaction
+    protected boolean validated = false;
+
+    // lock row -> xid of the transaction whose commit installed the row in
+    // this (committed) table but is not on disk yet, see
+    // ResourceManagerImpl.commit()
+    transient protected Hashtable committers;
+
+    // xids of the committing transactions whose rows the transaction has
+    // locked since, which must be on disk before it commits
+    transient protected HashSet dependsOn;
+
     transient protected LockManager lm;
 
     protected String tablename;
 
+    // the LockKey of the table, rows are locked by LockKeys derived from it
+    transient protected LockKey tableKey;
+
+    // lock row -> its LockKey, built once for the transaction and reused
+    // by its further requests on the row
+    transient protected Hashtable rowKeys;
+
     protected int xid;
 
     public RMTable(String tablename, RMTable parent, int xid, LockManager lm) {
@@ -42,8 +98,18 @@ public class RMTable implements Serializable {
         this.lm = lm;
     }
 
+    // sets the committed table of a transaction table read back from disk,
+    // its escrow decrements are pending there again
     public void setParent(RMTable parent) {
         this.parent = parent;
+        synchronized (parent) {
+            for (Iterator iter = escrows.keySet().iterator(); iter.hasNext(); )
+                notePending(iter.next());
+        }
+    }
+
+    public void setOptimistic(boolean optimistic) {
+        this.optimistic = optimistic;
     }
 
     public String getTablename() {
@@ -51,17 +117,292 @@ public class RMTable implements Serializable {
     }
 
     public void relockAll() throws DeadlockException {
+        if (!lm.lockAll(xid, getLockRequests(), LockManager.WAIT_DEFAULT))
+            throw new RuntimeException();
+    }
+
+    /**
+     * Returns the row locks the transaction holds on this table, to be
+     * reacquired with LockManager.lockAll(). An optimistic transaction holds
+     * none before validate().
+     */
+    public List<LockRequest> getLockRequests() {
+        if (optimistic && !validated)
+            return new ArrayList<>();
+        List<LockRequest> requests = new ArrayList<>(locks.size());
         for (Iterator iter = locks.entrySet().iterator(); iter.hasNext(); ) {
             Map.Entry entry = (Map.Entry) iter.next();
-            if (!lm.lock(xid, tablename + ":" + entry.getKey().toString(), ((Integer) entry.getValue()).intValue()))
-                throw new RuntimeException();
+            requests.add(new LockRequest(rowKey(entry.getKey()), ((Integer) entry.getValue()).intValue()));
         }
+        return requests;
     }
 
     public void lock(Object key, int lockType) throws DeadlockException {
-        if (!lm.lock(xid, tablename + ":" + key.toString(), lockType))
+        lock(key, lockType, LockManager.WAIT_DEFAULT);
+    }
+
+    /**
+     * Locks a row, every column group of it, waiting at most timeout ms
+     * (LockManager.NOWAIT: not at all) for conflicting locks to be released.
+     */
+    public void lock(Object key, int lockType, long timeout) throws DeadlockException {
+        List rows = lockRows(key);
+        if (optimistic) {
+            deferLocks(rows, lockType);
+            return;
+        }
+        if (!lm.lockAll(xid, lockRequests(rows, lockType), timeout))
             throw new RuntimeException();
-        locks.put(key, new Integer(lockType));
+        putLocks(rows, lockType);
+    }
+
+    /**
+     * Locks a row like lock(Object, int, long), without blocking the calling
+     * thread; the future completes once the lock is held.
+     */
+    public CompletableFuture<Void> lockAsync(Object key, int lockType, long timeout) {
+        return lockRowsAsync(lockRows(key), lockType, timeout);
+    }
+
+    /**
+     * Locks the row of an item about to be inserted like lockAsync(), by the
+     * column groups of the new item, and by its key as a whole, which the
+     * readers that find no row there lock.
+     */
+    public CompletableFuture<Void> lockAsync(ResourceItem newItem, int lockType, long timeout) {
+        List rows = lockRows(newItem.getKey(), newItem);
+        if (!rows.contains(newItem.getKey()))
+            rows.add(newItem.getKey());
+        return lockRowsAsync(rows, lockType, timeout);
+    }
+
+    /**
+     * Locks a single column group of a row like lockAsync(). Rows without
+     * column groups are locked as a whole.
+     */
+    public CompletableFuture<Void> lockGroupAsync(Object key, String group, int lockType, long timeout) {
+        List rows = new ArrayList();
+        rows.add(groupRow(key, group));
+        return lockRowsAsync(rows, lockType, timeout);
+    }
+
+    /**
+     * Locks several rows like lockAsync(), in a single batch.
+     */
+    public CompletableFuture<Void> lockAllAsync(Collection keys, int lockType, long timeout) {
+        List rows = new ArrayList();
+        for (Iterator iter = keys.iterator(); iter.hasNext(); )
+            rows.addAll(lockRows(iter.next()));
+        return lockRowsAsync(rows, lockType, timeout);
+    }
+
+    private CompletableFuture<Void> lockRowsAsync(List rows, int lockType, long timeout) {
+        if (optimistic) {
+            deferLocks(rows, lockType);
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Boolean> locked;
+        if (rows.size() == 1)
+            locked = lm.lockAsync(xid, rowKey(rows.get(0)), lockType, timeout);
+        else
+            locked = lm.lockAllAsync(xid, lockRequests(rows, lockType), timeout);
+        return locked.thenAccept(granted -> {
+            if (!granted.booleanValue())
+                throw new RuntimeException();
+            putLocks(rows, lockType);
+        });
+    }
+
+    // the lock rows of key: one ColumnGroupKey per column group of the
+    // item, or the key itself
+    private List lockRows(Object key) {
+        return lockRows(key, get(key));
+    }
+
+    private static List lockRows(Object key, ResourceItem item) {
+        String[] groups = (item == null) ? null : item.getColumnGroups();
+        // room for the key lockAsync(ResourceItem, ...) adds
+        List rows = new ArrayList((groups == null) ? 2 : groups.length + 1);
+        if (groups == null) {
+            rows.add(key);
+        } else {
+            for (int i = 0; i < groups.length; i++)
+                rows.add(new ColumnGroupKey(key, groups[i]));
+        }
+        return rows;
+    }
+
+    // the lock row of a column group of key, or key if the item has no
+    // such group
+    private Object groupRow(Object key, String group) {
+        ResourceItem item = get(key);
+        String[] groups = (item == null) ? null : item.getColumnGroups();
+        if (groups != null && Arrays.asList(groups).contains(group))
+            return new ColumnGroupKey(key, group);
+        return key;
+    }
+
+    private List<LockRequest> lockRequests(List rows, int lockType) {
+        List<LockRequest> requests = new ArrayList<>(rows.size());
+        for (Iterator iter = rows.iterator(); iter.hasNext(); )
+            requests.add(new LockRequest(rowKey(iter.next()), lockType));
+        return requests;
+    }
+
+    private LockKey rowKey(Object row) {
+        synchronized (this) {
+            if (rowKeys == null)
+                rowKeys = new Hashtable();
+        }
+        LockKey rowKey = (LockKey) rowKeys.get(row);
+        if (rowKey == null) {
+            rowKey = getTableKey().row(row);
+            rowKeys.put(row, rowKey);
+        }
+        return rowKey;
+    }
+
+    private void putLocks(List rows, int lockType) {
+        if (parent != null)
+            parent.addDependencies(rows, getDependencies());
+        for (Iterator iter = rows.iterator(); iter.hasNext(); ) {
+            Object row = iter.next();
+            Integer held = (Integer) locks.get(row);
+            locks.put(row, Integer.valueOf((held == null) ? lockType : LockManager.combine(held.intValue(), lockType)));
+        }
+    }
+
+    // records the locks of an optimistic transaction instead of taking
+    // them. Rows locked for anything but ESCROW are read or overwritten, so
+    // their committed versions must not change until validate(); escrow
+    // deltas commute with other commits.
+    private void deferLocks(List rows, int lockType) {
+        for (Iterator iter = rows.iterator(); iter.hasNext(); ) {
+            Object row = iter.next();
+            if (lockType != LockManager.ESCROW && !readVersions.containsKey(row))
+                readVersions.put(row, Long.valueOf(parent.getVersion(row)));
+        }
+        putLocks(rows, lockType);
+    }
+
+    /**
+     * Validates an optimistic transaction at prepare: takes the locks it has
+     * recorded, without waiting, and checks that no row it read or wrote
+     * has been committed by another transaction since. The locks are held
+     * until commit or abort, like those of a pessimistic transaction.
+     *
+     * @return false if the transaction has to abort. Always true for
+     * pessimistic transactions, which already hold their locks.
+     */
+    public boolean validate() {
+        if (!optimistic || validated)
+            return true;
+        validated = true;
+        try {
+            if (!lm.lockAll(xid, getLockRequests(), LockManager.NOWAIT))
+                return false;
+        } catch (DeadlockException e) {
+            // a conflicting transaction holds the lock, it is being
+            // validated or committed
+            return false;
+        }
+        // committers hold their locks until they are done, so the
+        // versions cannot change any more
+        for (Iterator iter = readVersions.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) iter.next();
+            if (parent.getVersion(entry.getKey()) != ((Long) entry.getValue()).longValue())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the read locks of the transaction once LockManager.unlockReads()
+     * has released them, so that recovery does not take them again.
+     */
+    public void dropReadLocks() {
+        for (Iterator iter = locks.values().iterator(); iter.hasNext(); ) {
+            int lockType = ((Integer) iter.next()).intValue();
+            if (lockType == LockManager.READ || lockType == LockManager.UPDATE)
+                iter.remove();
+        }
+    }
+
+    // the xids of the committing transactions the transaction depends on
+    public synchronized HashSet getDependencies() {
+        if (dependsOn == null)
+            dependsOn = new HashSet();
+        return dependsOn;
+    }
+
+    // adds the committers of rows in this (committed) table to dependsOn
+    private synchronized void addDependencies(List rows, HashSet dependsOn) {
+        if (committers == null || committers.isEmpty())
+            return;
+        for (Iterator iter = rows.iterator(); iter.hasNext(); ) {
+            Object xid = committers.get(iter.next());
+            if (xid != null) {
+                synchronized (dependsOn) {
+                    dependsOn.add(xid);
+                }
+            }
+        }
+    }
+
+    /**
+     * Records that the rows of this (committed) table that the transaction
+     * of xtable writes are installed but not on disk yet. Callers must hold
+     * the table monitor.
+     */
+    public void addCommitter(RMTable xtable) {
+        if (committers == null)
+            committers = new Hashtable();
+        Integer xid = Integer.valueOf(xtable.xid);
+        for (Iterator iter = writtenRows(xtable).iterator(); iter.hasNext(); )
+            committers.put(iter.next(), xid);
+    }
+
+    // forgets the rows of the committer xid, once they are on disk
+    public synchronized void removeCommitter(int xid) {
+        if (committers == null)
+            return;
+        committers.values().removeAll(Collections.singleton(Integer.valueOf(xid)));
+    }
+
+    public long getVersion(Object row) {
+        Long version = (Long) versions.get(row);
+        return (version == null) ? 0 : version.longValue();
+    }
+
+    /**
+     * Bumps the versions of the rows of this (committed) table that the
+     * committing transaction of xtable writes. Callers must hold the table
+     * monitor.
+     */
+    public void bumpVersions(RMTable xtable) {
+        for (Iterator iter = writtenRows(xtable).iterator(); iter.hasNext(); ) {
+            Object row = iter.next();
+            versions.put(row, Long.valueOf(getVersion(row) + 1));
+        }
+    }
+
+    // the lock rows the transaction of xtable writes: those of the items it
+    // puts, and the inventory groups of the items it escrows
+    private static List writtenRows(RMTable xtable) {
+        List rows = new ArrayList();
+        for (Iterator iter = xtable.table.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) iter.next();
+            rows.addAll(lockRows(entry.getKey(), (ResourceItem) entry.getValue()));
+        }
+        for (Iterator iter = xtable.escrowKeySet().iterator(); iter.hasNext(); )
+            rows.add(xtable.groupRow(iter.next(), ResourceItem.GROUP_INVENTORY));
+        return rows;
+    }
+
+    protected LockKey getTableKey() {
+        if (tableKey == null)
+            tableKey = LockKey.table(tablename);
+        return tableKey;
     }
 
     public ResourceItem get(Object key) {
@@ -73,12 +414,108 @@ public class RMTable implements Serializable {
 
     public void put(ResourceItem item) {
         table.put(item.getKey(), item);
+        // the row written already includes the escrow delta of the
+        // transaction, see getEscrow()
+        if (escrows.remove(item.getKey()) != null && parent != null) {
+            synchronized (parent) {
+                notePending(item.getKey());
+            }
+        }
+    }
+
+    /**
+     * Returns the net escrow delta of the transaction on the numAvail of
+     * the row key. Items read through this table do not include it.
+     */
+    public int getEscrow(Object key) {
+        Integer delta = (Integer) escrows.get(key);
+        return (delta == null) ? 0 : delta.intValue();
+    }
+
+    /**
+     * Adds delta to the escrow delta of the transaction on the row key.
+     * Callers must hold the monitor of the committed table.
+     */
+    public void addEscrow(Object key, int delta) {
+        escrows.put(key, Integer.valueOf(getEscrow(key) + delta));
+        notePending(key);
+    }
+
+    /**
+     * Drops the escrow deltas of the transaction, once they are applied to
+     * the committed table or aborted. Callers must hold the monitor of the
+     * committed table.
+     */
+    public void clearEscrows() {
+        List keys = new ArrayList(escrows.keySet());
+        escrows.clear();
+        for (Iterator iter = keys.iterator(); iter.hasNext(); )
+            notePending(iter.next());
+    }
+
+    /**
+     * Returns the sum of the net escrow decrements the transactions other
+     * than xid have pending on the row key of this committed table. Callers
+     * must hold its monitor.
+     */
+    public int getPendingDecrements(Object key, int xid) {
+        Hashtable row = (pendingDecrements == null) ? null : (Hashtable) pendingDecrements.get(key);
+        if (row == null)
+            return 0;
+        int sum = 0;
+        for (Iterator iter = row.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) iter.next();
+            if (((Integer) entry.getKey()).intValue() != xid)
+                sum += ((Integer) entry.getValue()).intValue();
+        }
+        return sum;
+    }
+
+    // records the net escrow decrement of the transaction on key in the
+    // committed table, whose monitor the caller holds
+    private void notePending(Object key) {
+        if (parent == null)
+            return;
+        if (parent.pendingDecrements == null)
+            parent.pendingDecrements = new Hashtable();
+        Hashtable row = (Hashtable) parent.pendingDecrements.get(key);
+        int decrement = Math.min(getEscrow(key), 0);
+        if (decrement < 0) {
+            if (row == null) {
+                row = new Hashtable();
+                parent.pendingDecrements.put(key, row);
+            }
+            row.put(Integer.valueOf(xid), Integer.valueOf(decrement));
+        } else if (row != null) {
+            row.remove(Integer.valueOf(xid));
+            if (row.isEmpty())
+                parent.pendingDecrements.remove(key);
+        }
+    }
+
+    public Set escrowKeySet() {
+        return escrows.keySet();
+    }
+
+    // returns false if the escrow deltas of xid have already been applied
+    public boolean markEscrowsApplied(int xid) {
+        return escrowsApplied.add(Integer.valueOf(xid));
+    }
+
+    // forgets the xids not in live, whose commits are done
+    public void pruneEscrowsApplied(Set live) {
+        escrowsApplied.retainAll(live);
     }
 
     public void remove(ResourceItem item) {
         table.remove(item.getKey());
     }
 
+    // true if the transaction of this table wrote nothing to it
+    public boolean isReadOnly() {
+        return table.isEmpty() && escrows.isEmpty();
+    }
+
     public Set keySet() {
         Hashtable t = new Hashtable();
         if (parent != null) {
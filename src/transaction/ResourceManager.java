@@ -1,6 +1,7 @@
 package transaction;
 
 import lockmgr.DeadlockException;
+import lockmgr.LockStats;
 import transaction.entity.ResourceItem;
 
 import java.rmi.Remote;
@@ -30,6 +31,11 @@ public interface ResourceManager extends Remote {
      */
     public static final String TableNameReservations = "Reservations";
 
+    // votes of prepare
+    public static final int ABORT = 0;
+    public static final int PREPARED = 1;
+    public static final int READ_ONLY = 2;
+
     public void setDieTime(String time) throws RemoteException;
 
     public boolean reconnect() throws RemoteException;
@@ -38,10 +44,40 @@ public interface ResourceManager extends Remote {
 
     public String getID() throws RemoteException;
 
+    /**
+     * Admin: returns the lock contention metrics of this RM (lock wait and
+     * hold time histograms, counts of grants, waits, conversions and
+     * deadlocks, and the most contended data items).
+     *
+     * @param reset if true, the metrics are reset after they are read.
+     */
+    public LockStats getLockStats(boolean reset) throws RemoteException;
+
     public ResourceItem query(int xid, String tablename, Object key)
             throws DeadlockException, InvalidTransactionException,
             RemoteException;
 
+    /**
+     * Reads an item the transaction is about to update, under an UPDATE
+     * lock: other transactions may still read it, but those about to
+     * update it wait until this transaction is done, instead of
+     * deadlocking with it when both convert their READ locks.
+     */
+    public ResourceItem queryForUpdate(int xid, String tablename, Object key)
+            throws DeadlockException, InvalidTransactionException,
+            RemoteException;
+
+    /**
+     * Reads an item under a READ lock on one of its column groups only (see
+     * ResourceItem.getColumnGroups()), so that it does not wait for, nor
+     * hold up, transactions writing the other groups. Only the fields of
+     * that group are guaranteed to be stable; items without column groups
+     * are locked as a whole.
+     */
+    public ResourceItem queryGroup(int xid, String tablename, Object key, String group)
+            throws DeadlockException, InvalidTransactionException,
+            RemoteException;
+
     public Collection<ResourceItem> query(int xid, String tablename, String indexName,
                             Object indexVal) throws DeadlockException,
             InvalidTransactionException, InvalidIndexException, RemoteException;
@@ -62,12 +98,101 @@ public interface ResourceManager extends Remote {
                       Object indexVal) throws DeadlockException,
             InvalidTransactionException, InvalidIndexException, RemoteException;
 
-    public boolean prepare(int xid) throws InvalidTransactionException,
+    /**
+     * Adds delta to the number of available units of an item (see
+     * transaction.entity.EscrowItem) under an ESCROW lock on its inventory
+     * column group. Transactions
+     * adding deltas to the same item do not block each other. A decrement
+     * is only granted if numAvail stays non-negative even if every pending
+     * decrement commits and no pending increment does. The delta is
+     * applied when the transaction commits; the transaction's own reads see
+     * it before.
+     *
+     * @return the item as the transaction sees it, delta included, or null
+     * if there is no such item or the decrement cannot be granted. Its
+     * price is not locked, read it with queryGroup() if it matters.
+     */
+    public ResourceItem escrow(int xid, String tablename, Object key, int delta)
+            throws DeadlockException, InvalidTransactionException,
+            RemoteException;
+
+    /*
+     * The operations above with a bound on how long they wait for locks:
+     * lockTimeout is LockManager.NOWAIT to fail at once on a lock conflict,
+     * or a timeout in milliseconds. A lock that is not granted in time
+     * raises LockTimeoutException, after which the transaction may go on.
+     */
+    public ResourceItem query(int xid, String tablename, Object key, long lockTimeout)
+            throws DeadlockException, InvalidTransactionException,
+            RemoteException;
+
+    public ResourceItem queryForUpdate(int xid, String tablename, Object key, long lockTimeout)
+            throws DeadlockException, InvalidTransactionException,
+            RemoteException;
+
+    public ResourceItem queryGroup(int xid, String tablename, Object key, String group, long lockTimeout)
+            throws DeadlockException, InvalidTransactionException,
+            RemoteException;
+
+    public Collection<ResourceItem> query(int xid, String tablename, String indexName,
+                                          Object indexVal, long lockTimeout) throws DeadlockException,
+            InvalidTransactionException, InvalidIndexException, RemoteException;
+
+    public boolean update(int xid, String tablename, Object key,
+                          ResourceItem newItem, long lockTimeout) throws DeadlockException,
+            InvalidTransactionException, RemoteException;
+
+    public boolean insert(int xid, String tablename, ResourceItem newItem, long lockTimeout)
+            throws DeadlockException, InvalidTransactionException,
+            RemoteException;
+
+    public boolean delete(int xid, String tablename, Object key, long lockTimeout)
+            throws DeadlockException, InvalidTransactionException,
+            RemoteException;
+
+    public int delete(int xid, String tablename, String indexName,
+                      Object indexVal, long lockTimeout) throws DeadlockException,
+            InvalidTransactionException, InvalidIndexException, RemoteException;
+
+    public ResourceItem escrow(int xid, String tablename, Object key, int delta, long lockTimeout)
+            throws DeadlockException, InvalidTransactionException,
+            RemoteException;
+
+    /**
+     * Prepares xid and votes on its outcome: PREPARED, ABORT, or READ_ONLY
+     * if xid wrote nothing here. A READ_ONLY vote ends xid at this RM: its
+     * locks are released, and it takes no part in the commit phase.
+     */
+    public int prepare(int xid) throws InvalidTransactionException,
             RemoteException;
 
     public void commit(int xid) throws InvalidTransactionException,
             RemoteException;
 
+    /**
+     * One-phase commit, for a transaction this RM is the only participant
+     * of: prepares xid and commits it if it could, or else aborts it. The
+     * outcome is decided and logged here, the TM keeps no record of it.
+     *
+     * @return true if xid committed, false if it aborted.
+     */
+    public boolean commitOnePhase(int xid) throws InvalidTransactionException,
+            RemoteException;
+
     public void abort(int xid) throws InvalidTransactionException,
             RemoteException;
+
+    /**
+     * Commits the transactions of xids, in order, for the TM to tell this
+     * RM several outcomes in one call. Committing a transaction that is
+     * already done here does nothing.
+     */
+    public void commitAll(Collection<Integer> xids) throws InvalidTransactionException,
+            RemoteException;
+
+    /**
+     * Aborts the transactions of xids, like commitAll().
+     */
+    public void abortAll(Collection<Integer> xids) throws InvalidTransactionException,
+            RemoteException;
 }
\ No newline at end of file
@@ -2,6 +2,9 @@ package transaction;
 
 import lockmgr.DeadlockException;
 import lockmgr.LockManager;
+import lockmgr.LockRequest;
+import lockmgr.LockStats;
+import transaction.entity.EscrowItem;
 import transaction.entity.ResourceItem;
 
 import java.io.*;
@@ -9,6 +12,8 @@ import java.rmi.Naming;
 import java.rmi.RMISecurityManager;
 import java.rmi.RemoteException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * Resource Manager for the Distributed Travel Reservation System.
@@ -18,13 +23,31 @@ import java.util.*;
 
 public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject implements ResourceManager {
     private final static String TRANSACTION_LOG_FILENAME = "transactions.log";
+    private final static String COMMITTING_LOG_FILENAME = "committing.log";
+    // how long a transaction is held before the TM is asked about it: its
+    // outcome may have been decided and not delivered
+    private final static long IN_DOUBT_TIMEOUT = 30000;
     protected TransactionManager tm = null;
     private String myRMIName = null; // Used to distinguish this RM from others
     private String dieTime;
     // RMs
     private HashSet xids = new HashSet();
+    // xid -> time this RM has held it since, or since it last asked the TM
+    // about it, guarded by xids
+    private HashMap<Integer, Long> heldSince = new HashMap<>();
     private LockManager lm = new LockManager();
     private Hashtable tables = new Hashtable();
+    // optimistic concurrency control instead of strict 2PL for the
+    // transactions of this RM, see RMTable.validate(). Selected with
+    // -Dconcurrency=occ when the RM is started.
+    private boolean optimistic;
+    // early lock release: a commit releases the locks of the transaction
+    // once its rows are installed, before they are written to disk.
+    // Selected with -DlockRelease=early when the RM is started.
+    private boolean earlyLockRelease;
+    // xids whose commit has released its locks but is not on disk yet;
+    // transactions that locked their rows wait for them before committing
+    private HashSet committing = new HashSet();
 
     public ResourceManagerImpl(String rmiName) throws RemoteException {
         // check whether the resource is valid
@@ -34,6 +57,8 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
 
         myRMIName = rmiName;
         dieTime = "NoDie";
+        optimistic = "occ".equalsIgnoreCase(System.getProperty("concurrency"));
+        earlyLockRelease = "early".equalsIgnoreCase(System.getProperty("lockRelease"));
 
         recover();
 
@@ -48,8 +73,10 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
             public void run() {
                 while (true) {
                     try {
-                        if (tm != null)
+                        if (tm != null) {
                             tm.ping();
+                            checkInDoubt();
+                        }
                     } catch (Exception e) {
                         tm = null;
                     }
@@ -104,6 +131,13 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         return myRMIName;
     }
 
+    public LockStats getLockStats(boolean reset) throws RemoteException {
+        LockStats stats = lm.getStats();
+        if (reset)
+            lm.resetStats();
+        return stats;
+    }
+
     public void recover() {
         HashSet t_xids = loadTransactionLogs();
         if (t_xids != null)
@@ -126,6 +160,11 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
             getTable(datas[i].getName());
         }
 
+        // commits that released their locks early but may not be on disk,
+        // redone below instead of taking their locks again
+        HashSet t_committing = (HashSet) utils.loadObject("data/" + COMMITTING_LOG_FILENAME);
+        List<Integer> redo = new ArrayList<>();
+
         //xtable
         for (int i = 0; i < datas.length; i++) {
             if (!datas[i].isDirectory())
@@ -136,15 +175,40 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
                 //this should never happen;
                 throw new RuntimeException("ERROR: UNEXPECTED XID");
             }
+            if (t_committing != null && t_committing.contains(new Integer(xid))) {
+                redo.add(new Integer(xid));
+                for (int j = 0; j < xdatas.length; j++)
+                    getTable(xid, xdatas[j].getName());
+                continue;
+            }
+            List<LockRequest> requests = new ArrayList<>();
             for (int j = 0; j < xdatas.length; j++) {
                 RMTable xtable = getTable(xid, xdatas[j].getName());
-                try {
-//                    reacquire all locks for the transaction
-//                    should ask coordinator for the status of transaction later
-                    xtable.relockAll();
-                } catch (DeadlockException e) {
-                    throw new RuntimeException(e);
-                }
+                requests.addAll(xtable.getLockRequests());
+            }
+            try {
+//                reacquire all locks for the transaction, in one batch
+//                should ask coordinator for the status of transaction later
+                if (!lm.lockAll(xid, requests, LockManager.WAIT_DEFAULT))
+                    throw new RuntimeException("ERROR: INVALID LOCKS OF XID " + xid);
+            } catch (DeadlockException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        // the TM has decided to commit them, before any other transaction
+        // can see the rows they had installed
+        for (Iterator<Integer> iter = redo.iterator(); iter.hasNext(); ) {
+            try {
+                commit(iter.next().intValue());
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+        // the log may still name commits done before the crash
+        if (t_committing != null && !t_committing.isEmpty()) {
+            synchronized (committing) {
+                utils.storeObject(committing, "data/" + COMMITTING_LOG_FILENAME);
             }
         }
     }
@@ -160,12 +224,19 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         try {
             tm = (TransactionManager) Naming.lookup(rmiPort + TransactionManager.RMIName);
             System.out.println(myRMIName + "'s xids is Empty ? " + xids.isEmpty());
-            for (Iterator iter = xids.iterator(); iter.hasNext(); ) {
-                int xid = ((Integer) iter.next()).intValue();
+            List<Integer> held;
+            synchronized (xids) {
+                held = new ArrayList<>(xids);
+            }
+            // ask coordinator for the status of all transactions at once
+            Map<Integer, String> outcomes = tm.enlistAll(myRMIName, this, held);
+            for (Iterator<Integer> iter = held.iterator(); iter.hasNext(); ) {
+                int xid = iter.next().intValue();
                 System.out.println(myRMIName + " Re-enlist to TM with xid: " + xid);
-                // ask coordinator for the status of transaction
-                String status = tm.enlist(xid, this);
-                if (status.equals(TransactionManager.ABORTED)) {
+                String status = outcomes.get(xid);
+                if (status.equals(TransactionManager.ABORTED) && isCommitting(xid)) {
+                    continue;
+                } else if (status.equals(TransactionManager.ABORTED)) {
                     System.out.println("xid has been aborted: " + xid);
                     abort(xid);
                     continue;
@@ -176,7 +247,6 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
                 }
                 if (dieTime.equals("AfterEnlist"))
                     dieNow();
-//                iter.remove();
             }
             System.out.println(myRMIName + " bound to TM");
         } catch (Exception e) {
@@ -199,24 +269,6 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         // but we still need it to please the compiler.
     }
 
-    public TransactionManager getTransactionManager() throws TransactionManagerUnaccessibleException {
-        if (tm != null) {
-            try {
-                tm.ping();
-            } catch (RemoteException e) {
-                tm = null;
-            }
-        }
-        if (tm == null) {
-            if (!reconnect())
-                tm = null;
-        }
-        if (tm == null)
-            throw new TransactionManagerUnaccessibleException();
-        else
-            return tm;
-    }
-
     protected RMTable loadTable(File file) {
         ObjectInputStream oin = null;
         try {
@@ -271,6 +323,7 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
                     table = new RMTable(tablename, null, -1, lm);
                 else {
                     table = new RMTable(tablename, getTable(tablename), xid, lm);
+                    table.setOptimistic(optimistic);
                 }
             } else {
                 if (xid != -1) {
@@ -295,33 +348,172 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         return utils.storeObject(xids, "data/transactions.log");
     }
 
-    public ResourceItem query(int xid, String tablename, Object key) throws DeadlockException,
-            InvalidTransactionException, RemoteException {
+    // asks the TM about the transactions held for longer than
+    // IN_DOUBT_TIMEOUT, and ends those it has decided. The TM only prunes its
+    // undelivered outcomes against the full list, so all are sent.
+    private void checkInDoubt() throws RemoteException, InvalidTransactionException {
+        List<Integer> held = new ArrayList<>();
+        boolean inDoubt = false;
+        long now = System.currentTimeMillis();
+        synchronized (xids) {
+            for (Iterator iter = xids.iterator(); iter.hasNext(); ) {
+                Integer xid = (Integer) iter.next();
+                held.add(xid);
+                Long since = heldSince.get(xid);
+                if (since == null)
+                    heldSince.put(xid, now); // recovered
+                else if (now - since.longValue() >= IN_DOUBT_TIMEOUT)
+                    inDoubt = true;
+            }
+        }
+        if (!inDoubt)
+            return;
+        Map<Integer, String> outcomes = tm.enlistAll(myRMIName, this, held);
+        for (Iterator<Integer> iter = held.iterator(); iter.hasNext(); ) {
+            int xid = iter.next().intValue();
+            String status = outcomes.get(xid);
+            if (status.equals(TransactionManager.ABORTED) && isCommitting(xid)) {
+                continue;
+            } else if (status.equals(TransactionManager.ABORTED)) {
+                System.out.println("xid in doubt has been aborted: " + xid);
+                abort(xid);
+            } else if (status.equals(TransactionManager.COMMITTED)) {
+                System.out.println("xid in doubt has been committed: " + xid);
+                commit(xid);
+            } else {
+                synchronized (xids) {
+                    if (heldSince.containsKey(xid))
+                        heldSince.put(xid, now);
+                }
+            }
+        }
+    }
+
+    // records xid before an operation of xid, only the first one writes
+    // the log. The TM is not called: the WC tells it the RMs of xid at
+    // commit, this RM only asks it about xid after a crash (reconnect()).
+    private void enlist(int xid) throws InvalidTransactionException, RemoteException {
         if (xid < 0) {
             throw new InvalidTransactionException(xid, "Xid must be positive.");
         }
-        try {
-            synchronized (xids) {
-                xids.add(new Integer(xid));
+        synchronized (xids) {
+            if (xids.add(new Integer(xid))) {
+                heldSince.put(xid, System.currentTimeMillis());
                 storeTransactionLogs(xids);
             }
-            getTransactionManager().enlist(xid, this);
-        } catch (TransactionManagerUnaccessibleException e) {
-            throw new RemoteException(e.getLocalizedMessage(), e);
         }
 
         if (dieTime.equals("AfterEnlist"))
             dieNow();
+    }
+
+    // writes the table of xid to disk, from within a continuation
+    private void storeTable(int xid, RMTable table) {
+        if (!storeTable(table, new File("data/" + xid + "/" + table.getTablename()))) {
+            throw new CompletionException(new RemoteException("System Error: Can't write table to disk!"));
+        }
+    }
+
+    // waits for an operation continued on lock requests to finish, and
+    // rethrows what it failed with
+    private static <T> T join(CompletableFuture<T> future) throws DeadlockException, RemoteException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DeadlockException)
+                throw (DeadlockException) cause;
+            if (cause instanceof RemoteException)
+                throw (RemoteException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RemoteException(cause.getLocalizedMessage(), cause);
+        }
+    }
+
+    /*
+     * The operations below are continuations on asynchronous lock requests:
+     * the ...Async methods enlist the transaction and return a future that
+     * completes once the locks are granted and the operation is done, or
+     * exceptionally with the DeadlockException or RemoteException it failed
+     * with. A request waiting for a lock holds no thread of its own. The
+     * remote methods wait for the future, RMI has no way to reply later.
+     */
+
+    public ResourceItem query(int xid, String tablename, Object key) throws DeadlockException,
+            InvalidTransactionException, RemoteException {
+        return query(xid, tablename, key, LockManager.WAIT_DEFAULT);
+    }
+
+    public ResourceItem query(int xid, String tablename, Object key, long lockTimeout) throws DeadlockException,
+            InvalidTransactionException, RemoteException {
+        return join(queryAsync(xid, tablename, key, lockTimeout));
+    }
+
+    public CompletableFuture<ResourceItem> queryAsync(int xid, String tablename, Object key, long lockTimeout)
+            throws InvalidTransactionException, RemoteException {
+        return queryAsync(xid, tablename, key, LockManager.READ, lockTimeout);
+    }
+
+    public ResourceItem queryForUpdate(int xid, String tablename, Object key) throws DeadlockException,
+            InvalidTransactionException, RemoteException {
+        return queryForUpdate(xid, tablename, key, LockManager.WAIT_DEFAULT);
+    }
+
+    public ResourceItem queryForUpdate(int xid, String tablename, Object key, long lockTimeout)
+            throws DeadlockException, InvalidTransactionException, RemoteException {
+        return join(queryForUpdateAsync(xid, tablename, key, lockTimeout));
+    }
+
+    public CompletableFuture<ResourceItem> queryForUpdateAsync(int xid, String tablename, Object key,
+                                                               long lockTimeout)
+            throws InvalidTransactionException, RemoteException {
+        return queryAsync(xid, tablename, key, LockManager.UPDATE, lockTimeout);
+    }
+
+    public ResourceItem queryGroup(int xid, String tablename, Object key, String group) throws DeadlockException,
+            InvalidTransactionException, RemoteException {
+        return queryGroup(xid, tablename, key, group, LockManager.WAIT_DEFAULT);
+    }
+
+    public ResourceItem queryGroup(int xid, String tablename, Object key, String group, long lockTimeout)
+            throws DeadlockException, InvalidTransactionException, RemoteException {
+        return join(queryGroupAsync(xid, tablename, key, group, lockTimeout));
+    }
+
+    public CompletableFuture<ResourceItem> queryGroupAsync(int xid, String tablename, Object key, String group,
+                                                           long lockTimeout)
+            throws InvalidTransactionException, RemoteException {
+        return queryAsync(xid, tablename, key, group, LockManager.READ, lockTimeout);
+    }
+
+    private CompletableFuture<ResourceItem> queryAsync(int xid, String tablename, Object key, int lockType,
+                                                       long lockTimeout)
+            throws InvalidTransactionException, RemoteException {
+        return queryAsync(xid, tablename, key, null, lockType, lockTimeout);
+    }
+
+    // reads key under a lockType lock, READ or UPDATE, on the column group
+    // group of it, or on all of it if group is null
+    private CompletableFuture<ResourceItem> queryAsync(int xid, String tablename, Object key, String group,
+                                                       int lockType, long lockTimeout)
+            throws InvalidTransactionException, RemoteException {
+        enlist(xid);
 
         // read twice, first to get lock, then to read.
         // if the item hasn't been locked by other transactions, just read twice and the results are same
         // if the item has been locked by other transactions, then wait for lock and read new result.
         // first to get lock
+        // a key without a row is locked too: a transaction inserting it may
+        // have committed without this RM being told yet
         RMTable table = getTable(xid, tablename);
-        ResourceItem item = table.get(key);
-        if (item != null && !item.isDeleted()) {
-            table.lock(key, LockManager.READ);
-
+        CompletableFuture<Void> lock = (group == null) ? table.lockAsync(key, lockType, lockTimeout)
+                : table.lockGroupAsync(key, group, lockType, lockTimeout);
+        return lock.thenApply(locked -> {
+            // keep the lock just recorded
+            storeTable(xid, table);
             // then to read values
             // remove old value
             Hashtable xidtables = (Hashtable) tables.get(xid); // can not be null
@@ -329,220 +521,276 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
                 xidtables.remove(tablename);
             }
             // read new value
-            table = getTable(xid, tablename);
-            item = table.get(key);
-            if (!storeTable(table, new File("data/" + xid + "/" + tablename))) {
-                throw new RemoteException("System Error: Can't write table to disk!");
-            }
+            RMTable table2 = getTable(xid, tablename);
+            ResourceItem item = withEscrow(table2, key);
+            return (item == null || item.isDeleted()) ? null : item;
+        });
+    }
+
+    // returns the row key as the transaction of table sees it, its own
+    // escrow delta included
+    private static ResourceItem withEscrow(RMTable table, Object key) {
+        ResourceItem item = table.get(key);
+        int delta = table.getEscrow(key);
+        if (delta == 0 || item == null || !(item instanceof EscrowItem))
             return item;
-        }
-        return null;
+        item = (ResourceItem) item.clone();
+        ((EscrowItem) item).addAvail(delta);
+        return item;
     }
 
     public Collection<ResourceItem> query(int xid, String tablename, String indexName, Object indexVal) throws DeadlockException,
             InvalidTransactionException, InvalidIndexException, RemoteException {
-        if (xid < 0) {
-            throw new InvalidTransactionException(xid, "Xid must be positive.");
-        }
-        try {
-            synchronized (xids) {
-                xids.add(new Integer(xid));
-                storeTransactionLogs(xids);
-            }
-            getTransactionManager().enlist(xid, this);
-        } catch (TransactionManagerUnaccessibleException e) {
-            throw new RemoteException(e.getLocalizedMessage(), e);
-        }
+        return query(xid, tablename, indexName, indexVal, LockManager.WAIT_DEFAULT);
+    }
 
-        if (dieTime.equals("AfterEnlist"))
-            dieNow();
+    public Collection<ResourceItem> query(int xid, String tablename, String indexName, Object indexVal,
+                                          long lockTimeout) throws DeadlockException,
+            InvalidTransactionException, InvalidIndexException, RemoteException {
+        return join(queryAsync(xid, tablename, indexName, indexVal, lockTimeout));
+    }
 
-        Collection<ResourceItem> result = new ArrayList<>();
+    public CompletableFuture<Collection<ResourceItem>> queryAsync(int xid, String tablename, String indexName,
+                                                                  Object indexVal, long lockTimeout)
+            throws InvalidTransactionException, InvalidIndexException, RemoteException {
+        enlist(xid);
 
         // read twice, first to get lock, then to read.
         // if the item hasn't been locked by other transactions, just read twice and the results are same
         // if the item has been locked by other transactions, then wait for lock and read new result.
-        // first to get lock
+        // first to get lock, all rows in one batch
         RMTable table = getTable(xid, tablename);
+        Collection keys = new ArrayList();
         synchronized (table) {
             for (Iterator iter = table.keySet().iterator(); iter.hasNext(); ) {
                 Object key = iter.next();
                 ResourceItem item = table.get(key);
                 if (item != null && !item.isDeleted() && item.getIndex(indexName).equals(indexVal)) {
-                    table.lock(key, LockManager.READ);
+                    keys.add(key);
                 }
             }
         }
 
-        // then to read values
-        // remove old value
-        Hashtable xidtables = (Hashtable) tables.get(xid); // can not be null
-        synchronized (xidtables) {
-            xidtables.remove(tablename);
-        }
-        // read new value
-        table = getTable(xid, tablename);
-        synchronized (table) {
-            for (Iterator iter = table.keySet().iterator(); iter.hasNext(); ) {
-                Object key = iter.next();
-                ResourceItem item = table.get(key);
-                if (item != null && !item.isDeleted() && item.getIndex(indexName).equals(indexVal)) {
-                    // table.lock(key, LockManager.READ); // have been locked
-                    result.add(item);
-                }
+        return table.lockAllAsync(keys, LockManager.READ, lockTimeout).thenApply(v -> {
+            // keep the locks just recorded
+            if (!keys.isEmpty()) {
+                storeTable(xid, table);
             }
-            if (!result.isEmpty()) {
-                if (!storeTable(table, new File("data/" + xid + "/" + tablename))) {
-                    throw new RemoteException("System Error: Can't write table to disk!");
+            // then to read values
+            // remove old value
+            Hashtable xidtables = (Hashtable) tables.get(xid); // can not be null
+            synchronized (xidtables) {
+                xidtables.remove(tablename);
+            }
+            // read new value
+            Collection<ResourceItem> result = new ArrayList<>();
+            RMTable table2 = getTable(xid, tablename);
+            synchronized (table2) {
+                for (Iterator iter = table2.keySet().iterator(); iter.hasNext(); ) {
+                    Object key = iter.next();
+                    ResourceItem item = table2.get(key);
+                    if (item != null && !item.isDeleted() && indexEquals(item, indexName, indexVal)) {
+                        // table.lock(key, LockManager.READ); // have been locked
+                        result.add(item);
+                    }
                 }
             }
+            return result;
+        });
+    }
+
+    // item.getIndex(indexName).equals(indexVal), from within a continuation
+    private static boolean indexEquals(ResourceItem item, String indexName, Object indexVal) {
+        try {
+            return item.getIndex(indexName).equals(indexVal);
+        } catch (InvalidIndexException e) {
+            throw new CompletionException(e);
         }
-        return result;
     }
 
     public boolean update(int xid, String tablename, Object key, ResourceItem newItem) throws DeadlockException,
             InvalidTransactionException, RemoteException {
+        return update(xid, tablename, key, newItem, LockManager.WAIT_DEFAULT);
+    }
+
+    public boolean update(int xid, String tablename, Object key, ResourceItem newItem, long lockTimeout)
+            throws DeadlockException, InvalidTransactionException, RemoteException {
+        return join(updateAsync(xid, tablename, key, newItem, lockTimeout));
+    }
+
+    public CompletableFuture<Boolean> updateAsync(int xid, String tablename, Object key, ResourceItem newItem,
+                                                  long lockTimeout)
+            throws InvalidTransactionException, RemoteException {
         if (xid < 0) {
             throw new InvalidTransactionException(xid, "Xid must be positive.");
         }
         if (!key.equals(newItem.getKey()))
             throw new IllegalArgumentException();
 
-        try {
-            synchronized (xids) {
-                xids.add(new Integer(xid));
-                storeTransactionLogs(xids);
-            }
-            getTransactionManager().enlist(xid, this);
-        } catch (TransactionManagerUnaccessibleException e) {
-            throw new RemoteException(e.getLocalizedMessage(), e);
-        }
-
-        if (dieTime.equals("AfterEnlist"))
-            dieNow();
+        enlist(xid);
 
         RMTable table = getTable(xid, tablename);
         ResourceItem item = table.get(key);
-        if (item != null && !item.isDeleted()) {
-            table.lock(key, LockManager.WRITE);
-            table.put(newItem);
-            if (!storeTable(table, new File("data/" + xid + "/" + tablename))) {
-                throw new RemoteException("System Error: Can't write table to disk!");
-            }
-            return true;
+        if (item == null || item.isDeleted()) {
+            return CompletableFuture.completedFuture(Boolean.FALSE);
         }
-        return false;
+        return table.lockAsync(key, LockManager.WRITE, lockTimeout).thenApply(locked -> {
+            table.put(newItem);
+            storeTable(xid, table);
+            return Boolean.TRUE;
+        });
     }
 
     public boolean insert(int xid, String tablename, ResourceItem newItem) throws DeadlockException,
             InvalidTransactionException, RemoteException {
-        if (xid < 0) {
-            throw new InvalidTransactionException(xid, "Xid must be positive.");
-        }
+        return insert(xid, tablename, newItem, LockManager.WAIT_DEFAULT);
+    }
 
-        try {
-            synchronized (xids) {
-                xids.add(new Integer(xid));
-                storeTransactionLogs(xids);
-            }
-            getTransactionManager().enlist(xid, this);
-        } catch (TransactionManagerUnaccessibleException e) {
-            throw new RemoteException(e.getLocalizedMessage(), e);
-        }
+    public boolean insert(int xid, String tablename, ResourceItem newItem, long lockTimeout)
+            throws DeadlockException, InvalidTransactionException, RemoteException {
+        return join(insertAsync(xid, tablename, newItem, lockTimeout));
+    }
 
-        if (dieTime.equals("AfterEnlist"))
-            dieNow();
+    public CompletableFuture<Boolean> insertAsync(int xid, String tablename, ResourceItem newItem, long lockTimeout)
+            throws InvalidTransactionException, RemoteException {
+        enlist(xid);
 
         RMTable table = getTable(xid, tablename);
         ResourceItem item = (ResourceItem) table.get(newItem.getKey());
         if (item != null && !item.isDeleted()) {
-            return false;
+            return CompletableFuture.completedFuture(Boolean.FALSE);
         }
-        table.lock(newItem.getKey(), LockManager.WRITE);
-        table.put(newItem);
-        if (!storeTable(table, new File("data/" + xid + "/" + tablename))) {
-            throw new RemoteException("System Error: Can't write table to disk!");
-        }
-        return true;
+        return table.lockAsync(newItem, LockManager.WRITE, lockTimeout).thenApply(locked -> {
+            // the row may have been committed while waiting for the lock
+            ResourceItem committed = table.get(newItem.getKey());
+            if (committed != null && !committed.isDeleted()) {
+                storeTable(xid, table);
+                return Boolean.FALSE;
+            }
+            table.put(newItem);
+            storeTable(xid, table);
+            return Boolean.TRUE;
+        });
     }
 
     public boolean delete(int xid, String tablename, Object key) throws DeadlockException, InvalidTransactionException,
             RemoteException {
-        if (xid < 0) {
-            throw new InvalidTransactionException(xid, "Xid must be positive.");
-        }
+        return delete(xid, tablename, key, LockManager.WAIT_DEFAULT);
+    }
 
-        try {
-            synchronized (xids) {
-                xids.add(new Integer(xid));
-                storeTransactionLogs(xids);
-            }
-            getTransactionManager().enlist(xid, this);
-        } catch (TransactionManagerUnaccessibleException e) {
-            throw new RemoteException(e.getLocalizedMessage(), e);
-        }
+    public boolean delete(int xid, String tablename, Object key, long lockTimeout) throws DeadlockException,
+            InvalidTransactionException, RemoteException {
+        return join(deleteAsync(xid, tablename, key, lockTimeout));
+    }
 
-        if (dieTime.equals("AfterEnlist"))
-            dieNow();
+    public CompletableFuture<Boolean> deleteAsync(int xid, String tablename, Object key, long lockTimeout)
+            throws InvalidTransactionException, RemoteException {
+        enlist(xid);
 
         RMTable table = getTable(xid, tablename);
         ResourceItem item = table.get(key);
-        if (item != null && !item.isDeleted()) {
-            table.lock(key, LockManager.WRITE);
-            item = (ResourceItem) item.clone();
-            item.delete();
-            table.put(item);
-            if (!storeTable(table, new File("data/" + xid + "/" + tablename))) {
-                throw new RemoteException("System Error: Can't write table to disk!");
-            }
-            return true;
+        if (item == null || item.isDeleted()) {
+            return CompletableFuture.completedFuture(Boolean.FALSE);
         }
-        return false;
+        return table.lockAsync(key, LockManager.WRITE, lockTimeout).thenApply(locked -> {
+            ResourceItem deleted = (ResourceItem) item.clone();
+            deleted.delete();
+            table.put(deleted);
+            storeTable(xid, table);
+            return Boolean.TRUE;
+        });
     }
 
     public int delete(int xid, String tablename, String indexName, Object indexVal) throws DeadlockException,
             InvalidTransactionException, InvalidIndexException, RemoteException {
-        if (xid < 0) {
-            throw new InvalidTransactionException(xid, "Xid must be positive.");
-        }
-        try {
-            synchronized (xids) {
-                xids.add(new Integer(xid));
-                storeTransactionLogs(xids);
-            }
-            getTransactionManager().enlist(xid, this);
-        } catch (TransactionManagerUnaccessibleException e) {
-            throw new RemoteException(e.getLocalizedMessage(), e);
-        }
+        return delete(xid, tablename, indexName, indexVal, LockManager.WAIT_DEFAULT);
+    }
 
-        if (dieTime.equals("AfterEnlist"))
-            dieNow();
+    public int delete(int xid, String tablename, String indexName, Object indexVal, long lockTimeout)
+            throws DeadlockException, InvalidTransactionException, InvalidIndexException, RemoteException {
+        return join(deleteAsync(xid, tablename, indexName, indexVal, lockTimeout)).intValue();
+    }
 
-        int n = 0;
+    public CompletableFuture<Integer> deleteAsync(int xid, String tablename, String indexName, Object indexVal,
+                                                  long lockTimeout)
+            throws InvalidTransactionException, InvalidIndexException, RemoteException {
+        enlist(xid);
 
+        // lock the matching rows in one batch, then delete them
         RMTable table = getTable(xid, tablename);
+        Vector matching = new Vector();
+        Collection keys = new ArrayList();
         synchronized (table) {
             for (Iterator iter = table.keySet().iterator(); iter.hasNext(); ) {
                 Object key = iter.next();
                 ResourceItem item = table.get(key);
                 if (item != null && !item.isDeleted() && item.getIndex(indexName).equals(indexVal)) {
-                    table.lock(item.getKey(), LockManager.WRITE);
-                    item = (ResourceItem) item.clone();
+                    matching.addElement(item);
+                    keys.add(item.getKey());
+                }
+            }
+        }
+
+        return table.lockAllAsync(keys, LockManager.WRITE, lockTimeout).thenApply(v -> {
+            int n = matching.size();
+            synchronized (table) {
+                for (int i = 0; i < n; i++) {
+                    ResourceItem item = (ResourceItem) ((ResourceItem) matching.elementAt(i)).clone();
                     item.delete();
                     table.put(item);
-                    n++;
                 }
-            }
-            if (n > 0) {
-                if (!storeTable(table, new File("data/" + xid + "/" + tablename))) {
-                    throw new RemoteException("System Error: Can't write table to disk!");
+                if (n > 0) {
+                    storeTable(xid, table);
                 }
             }
+            return Integer.valueOf(n);
+        });
+    }
+
+    public ResourceItem escrow(int xid, String tablename, Object key, int delta) throws DeadlockException,
+            InvalidTransactionException, RemoteException {
+        return escrow(xid, tablename, key, delta, LockManager.WAIT_DEFAULT);
+    }
+
+    public ResourceItem escrow(int xid, String tablename, Object key, int delta, long lockTimeout)
+            throws DeadlockException, InvalidTransactionException, RemoteException {
+        return join(escrowAsync(xid, tablename, key, delta, lockTimeout));
+    }
+
+    public CompletableFuture<ResourceItem> escrowAsync(int xid, String tablename, Object key, int delta,
+                                                       long lockTimeout)
+            throws InvalidTransactionException, RemoteException {
+        enlist(xid);
+
+        RMTable table = getTable(xid, tablename);
+        ResourceItem item = table.get(key);
+        if (item == null || item.isDeleted() || !(item instanceof EscrowItem)) {
+            return CompletableFuture.completedFuture(null);
         }
-        return n;
+        // only numAvail changes, readers of the price need not wait
+        CompletableFuture<Void> lock = table.lockGroupAsync(key, ResourceItem.GROUP_INVENTORY, LockManager.ESCROW,
+                lockTimeout);
+        return lock.thenApply(locked -> {
+            // the committed numAvail cannot change while the deltas are
+            // pending; commits apply theirs under the same monitor
+            RMTable committed = getTable(tablename);
+            synchronized (committed) {
+                // numAvail if every pending decrement commits and no
+                // pending increment does
+                int low = ((EscrowItem) table.get(key)).getNumAvail()
+                        + Math.min(table.getEscrow(key) + delta, 0)
+                        + committed.getPendingDecrements(key, xid);
+                if (delta < 0 && low < 0) {
+                    return null;
+                }
+                table.addEscrow(key, delta);
+            }
+            storeTable(xid, table);
+            return withEscrow(table, key);
+        });
     }
 
-    public boolean prepare(int xid) throws InvalidTransactionException, RemoteException {
+    public int prepare(int xid) throws InvalidTransactionException, RemoteException {
         if (dieTime.equals("BeforePrepare"))
             dieNow();
 
@@ -550,66 +798,282 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
             throw new InvalidTransactionException(xid, "Xid must be positive.");
         }
 
+        if (optimistic && !validate(xid)) {
+            System.out.println("Validation failed: " + xid);
+            return ABORT;
+        }
+        // committing and aborting xid are the same if it wrote nothing
+        boolean readOnly = isReadOnly(xid);
+        if (readOnly)
+            release(xid);
+        else
+            releaseReadLocks(xid);
+
         // AfterPrepare: die after it has entered the prepared state, but just before it
         //     * could reply "prepared" to the TM.
         if (dieTime.equals("AfterPrepare"))
             dieNow();
 
-        System.out.println("Prepared: " + xid);
+        System.out.println((readOnly ? "Prepared read only: " : "Prepared: ") + xid);
+        return readOnly ? READ_ONLY : PREPARED;
+    }
+
+    private boolean isReadOnly(int xid) {
+        Hashtable xidtables = (Hashtable) tables.get(new Integer(xid));
+        if (xidtables == null)
+            return true;
+        synchronized (xidtables) {
+            for (Iterator iter = xidtables.values().iterator(); iter.hasNext(); ) {
+                if (!((RMTable) iter.next()).isReadOnly())
+                    return false;
+            }
+        }
         return true;
     }
 
+    // validates the optimistic transaction xid at prepare, see
+    // RMTable.validate(). Its escrow decrements are checked again, as
+    // nothing kept other transactions from writing the rows before.
+    private boolean validate(int xid) throws RemoteException {
+        Hashtable xidtables = (Hashtable) tables.get(new Integer(xid));
+        if (xidtables == null)
+            return true;
+        synchronized (xidtables) {
+            for (Iterator iter = xidtables.values().iterator(); iter.hasNext(); ) {
+                RMTable xtable = (RMTable) iter.next();
+                if (!xtable.validate())
+                    return false;
+                RMTable committed = getTable(xtable.getTablename());
+                synchronized (committed) {
+                    for (Iterator iter2 = xtable.escrowKeySet().iterator(); iter2.hasNext(); ) {
+                        Object key = iter2.next();
+                        ResourceItem item = committed.get(key);
+                        if (item == null || item.isDeleted())
+                            return false;
+                        int low = ((EscrowItem) item).getNumAvail()
+                                + Math.min(xtable.getEscrow(key), 0)
+                                + committed.getPendingDecrements(key, xid);
+                        if (low < 0)
+                            return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    // releases the read locks of the prepared transaction xid, which reads
+    // nothing more: it is done taking locks, so releasing some keeps it
+    // two-phase. The tables are stored without them, recovery takes only
+    // the others.
+    private void releaseReadLocks(int xid) throws RemoteException {
+        Hashtable xidtables = (Hashtable) tables.get(new Integer(xid));
+        if (xidtables != null) {
+            synchronized (xidtables) {
+                for (Iterator iter = xidtables.values().iterator(); iter.hasNext(); ) {
+                    RMTable xtable = (RMTable) iter.next();
+                    xtable.dropReadLocks();
+                    if (!storeTable(xtable, new File("data/" + xid + "/" + xtable.getTablename())))
+                        throw new RemoteException("Can't write table to disk");
+                }
+            }
+        }
+        lm.unlockReads(xid);
+    }
+
     public void commit(int xid) throws InvalidTransactionException, RemoteException {
         if (dieTime.equals("BeforeCommit"))
             dieNow();
+        doCommit(xid);
+    }
+
+    public boolean commitOnePhase(int xid) throws InvalidTransactionException, RemoteException {
+        int vote = prepare(xid);
+        if (vote == READ_ONLY)
+            return true;
+        if (vote == ABORT) {
+            abort(xid);
+            return false;
+        }
+        if (dieTime.equals("BeforeCommit"))
+            dieNow();
+        // no TM log to redo the commit from: log it here, recovery redoes
+        // it like a commit that released its locks early
+        logCommitting(xid);
+        doCommit(xid);
+        return true;
+    }
+
+    // records that xid is committing, for recover()
+    private void logCommitting(int xid) throws RemoteException {
+        synchronized (committing) {
+            committing.add(new Integer(xid));
+            if (!utils.storeObject(committing, "data/" + COMMITTING_LOG_FILENAME))
+                throw new RemoteException("Can't write committing log to disk");
+        }
+    }
+
+    // whether the commit of xid is logged here: a one phase commit the TM
+    // has forgotten, whose outcome it presumes aborted, is done all the same
+    private boolean isCommitting(int xid) {
+        synchronized (committing) {
+            return committing.contains(new Integer(xid));
+        }
+    }
+
+    private void doCommit(int xid) throws InvalidTransactionException, RemoteException {
         if (xid < 0) {
             throw new InvalidTransactionException(xid, "Xid must be positive.");
         }
         Hashtable xidtables = (Hashtable) tables.get(new Integer(xid));
         if (xidtables != null) {
             synchronized (xidtables) {
+                if (earlyLockRelease)
+                    waitForDependencies(xidtables);
                 for (Iterator iter = xidtables.entrySet().iterator(); iter.hasNext(); ) {
                     Map.Entry entry = (Map.Entry) iter.next();
                     RMTable xtable = (RMTable) entry.getValue();
                     RMTable table = getTable(xtable.getTablename());
-                    for (Iterator iter2 = xtable.keySet().iterator(); iter2.hasNext(); ) {
-                        Object key = iter2.next();
-                        ResourceItem item = xtable.get(key);
-                        if (item.isDeleted())
-                            table.remove(item);
-                        else
-                            table.put(item);
+                    // xtable.get() also returns rows of table, which other
+                    // commits must not change in between
+                    synchronized (table) {
+                        for (Iterator iter2 = xtable.keySet().iterator(); iter2.hasNext(); ) {
+                            Object key = iter2.next();
+                            ResourceItem item = xtable.get(key);
+                            if (item.isDeleted())
+                                table.remove(item);
+                            else
+                                table.put(item);
+                        }
+                        applyEscrows(xid, xtable, table);
+                        table.bumpVersions(xtable);
+                        if (earlyLockRelease)
+                            table.addCommitter(xtable);
+                        // applied: no longer pending for the escrows of
+                        // other transactions
+                        xtable.clearEscrows();
+                        if (!earlyLockRelease && !storeTable(table, new File("data/" + entry.getKey())))
+                            throw new RemoteException("Can't write table to disk");
                     }
-                    if (!storeTable(table, new File("data/" + entry.getKey())))
-                        throw new RemoteException("Can't write table to disk");
-                    new File("data/" + xid + "/" + entry.getKey()).delete();
                 }
+                if (earlyLockRelease) {
+                    // the rows are installed: let other transactions at them
+                    // while they are written, a crash in between redoes the
+                    // commit at recovery
+                    logCommitting(xid);
+                    lm.unlockAll(xid);
+                    for (Iterator iter = xidtables.entrySet().iterator(); iter.hasNext(); ) {
+                        Map.Entry entry = (Map.Entry) iter.next();
+                        RMTable table = getTable((String) entry.getKey());
+                        synchronized (table) {
+                            if (!storeTable(table, new File("data/" + entry.getKey())))
+                                throw new RemoteException("Can't write table to disk");
+                        }
+                    }
+                }
+                for (Iterator iter = xidtables.keySet().iterator(); iter.hasNext(); )
+                    new File("data/" + xid + "/" + iter.next()).delete();
                 new File("data/" + xid).delete();
                 tables.remove(new Integer(xid));
+                if (earlyLockRelease) {
+                    for (Iterator iter = xidtables.keySet().iterator(); iter.hasNext(); )
+                        getTable((String) iter.next()).removeCommitter(xid);
+                }
             }
         }
 
         if (!lm.unlockAll(xid))
             throw new RuntimeException();
 
+        synchronized (committing) {
+            if (committing.remove(new Integer(xid))) {
+                committing.notifyAll();
+                // on disk: recover() must not redo xid once it is gone
+                utils.storeObject(committing, "data/" + COMMITTING_LOG_FILENAME);
+            }
+        }
         synchronized (xids) {
             xids.remove(new Integer(xid));
+            heldSince.remove(xid);
         }
 
         System.out.println("Commit xid: " + xid);
     }
 
+    // waits until the commits whose rows the transaction of xidtables has
+    // locked after they released their locks are on disk
+    private void waitForDependencies(Hashtable xidtables) {
+        HashSet dependsOn = new HashSet();
+        for (Iterator iter = xidtables.values().iterator(); iter.hasNext(); ) {
+            HashSet dependencies = ((RMTable) iter.next()).getDependencies();
+            synchronized (dependencies) {
+                dependsOn.addAll(dependencies);
+            }
+        }
+        if (dependsOn.isEmpty())
+            return;
+        synchronized (committing) {
+            dependsOn.retainAll(committing);
+            while (!dependsOn.isEmpty()) {
+                try {
+                    committing.wait();
+                } catch (InterruptedException e) {
+                }
+                dependsOn.retainAll(committing);
+            }
+        }
+    }
+
+    // adds the escrow deltas of xtable to the committed rows of table, once.
+    // Callers must hold the table monitor.
+    private void applyEscrows(int xid, RMTable xtable, RMTable table) {
+        synchronized (xids) {
+            table.pruneEscrowsApplied(xids);
+        }
+        if (xtable.escrowKeySet().isEmpty() || !table.markEscrowsApplied(xid))
+            return;
+        for (Iterator iter = xtable.escrowKeySet().iterator(); iter.hasNext(); ) {
+            Object key = iter.next();
+            ResourceItem item = table.get(key);
+            if (item == null || item.isDeleted())
+                continue;
+            item = (ResourceItem) item.clone();
+            ((EscrowItem) item).addAvail(xtable.getEscrow(key));
+            table.put(item);
+        }
+    }
+
     public void abort(int xid) throws InvalidTransactionException, RemoteException {
         if (dieTime.equals("BeforeAbort"))
             dieNow();
         if (xid < 0) {
             throw new InvalidTransactionException(xid, "Xid must be positive.");
         }
+        release(xid);
+        System.out.println("Abort xid: " + xid);
+    }
+
+    public void commitAll(Collection<Integer> xids) throws InvalidTransactionException, RemoteException {
+        for (Iterator<Integer> iter = xids.iterator(); iter.hasNext(); )
+            commit(iter.next().intValue());
+    }
+
+    public void abortAll(Collection<Integer> xids) throws InvalidTransactionException, RemoteException {
+        for (Iterator<Integer> iter = xids.iterator(); iter.hasNext(); )
+            abort(iter.next().intValue());
+    }
+
+    // drops the tables and the locks of xid without installing anything
+    private void release(int xid) {
         Hashtable xidtables = (Hashtable) tables.get(new Integer(xid));
         if (xidtables != null) {
             synchronized (xidtables) {
                 for (Iterator iter = xidtables.entrySet().iterator(); iter.hasNext(); ) {
                     Map.Entry entry = (Map.Entry) iter.next();
+                    RMTable committed = getTable((String) entry.getKey());
+                    synchronized (committed) {
+                        ((RMTable) entry.getValue()).clearEscrows();
+                    }
                     new File("data/" + xid + "/" + entry.getKey()).delete();
                 }
                 new File("data/" + xid).delete();
@@ -622,7 +1086,7 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
 
         synchronized (xids) {
             xids.remove(new Integer(xid));
+            heldSince.remove(xid);
         }
-        System.out.println("Abort xid: " + xid);
     }
 }
\ No newline at end of file
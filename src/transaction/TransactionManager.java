@@ -2,6 +2,8 @@ package transaction;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * Interface for the Transaction Manager of the Distributed Travel
@@ -36,13 +38,19 @@ public interface TransactionManager extends Remote {
     //////////
 
     /**
-     * Add a resource manager to the participants list
-     * @param xid transaction id
-     * @param rm resource manager
-     * @throws RemoteException
-     * @return true for success, false for fail (the xid has been aborted)
+     * Enlists an RM in the transactions it holds, in one call: rm learns
+     * the outcome of each, INITED if it is still running. The outcomes that
+     * could not be delivered to rm before are among them. RMs call it when
+     * they reconnect, and when they have held a transaction for long; the
+     * others are given to commit() and abort().
+     * @param rmName the RMI name of rm
+     * @param xids all the transactions rm holds, not some of them: the
+     *             undelivered outcomes of rm that are not among them are
+     *             taken to be done, and forgotten
+     * @return xid -> INITED, COMMITTED or ABORTED, for each of xids
      */
-    public String enlist(int xid, ResourceManager rm) throws RemoteException;
+    public Map<Integer, String> enlistAll(String rmName, ResourceManager rm, Collection<Integer> xids)
+            throws RemoteException;
 
     /**
      * Start a new transaction, and return its transaction id.
@@ -67,6 +75,23 @@ public interface TransactionManager extends Remote {
             TransactionAbortedException,
             InvalidTransactionException;
 
+    /**
+     * Commit transaction, whose participants are given by the caller
+     * instead of enlisting themselves.
+     *
+     * @param xid          id of transaction to be committed.
+     * @param participants the RMs the transaction has called. RMs that it
+     *                     has not called may be in it, they vote read only.
+     * @return true on success, false on failure.
+     * @throws RemoteException             on communications failure.
+     * @throws TransactionAbortedException if transaction was aborted.
+     * @throws InvalidTransactionException if transaction id is invalid.
+     */
+    public boolean commit(int xid, Collection<ResourceManager> participants)
+            throws RemoteException,
+            TransactionAbortedException,
+            InvalidTransactionException;
+
     /**
      * Abort transaction.
      *
@@ -77,4 +102,17 @@ public interface TransactionManager extends Remote {
     public void abort(int xid)
             throws RemoteException,
             InvalidTransactionException;
+
+    /**
+     * Abort transaction, whose participants are given by the caller, see
+     * commit(int, Collection).
+     *
+     * @param xid          id of transaction to be aborted.
+     * @param participants the RMs the transaction has called.
+     * @throws RemoteException             on communications failure.
+     * @throws InvalidTransactionException if transaction id is invalid.
+     */
+    public void abort(int xid, Collection<ResourceManager> participants)
+            throws RemoteException,
+            InvalidTransactionException;
 }
@@ -1,11 +1,23 @@
 package transaction;
 
 import java.io.File;
+import java.io.IOException;
 import java.rmi.Naming;
 import java.rmi.RMISecurityManager;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Transaction Manager for the Distributed Travel Reservation System.
@@ -17,24 +29,73 @@ public class TransactionManagerImpl
         extends java.rmi.server.UnicastRemoteObject
         implements TransactionManager {
 
-    private Integer xidCounter; // allocate unique id
+    // bound on the calls to participants in flight at once
+    private static final int PARTICIPANT_THREADS = 16;
+    // how long a participant may take to answer prepare, commit or abort
+    private static final long PARTICIPANT_TIMEOUT = 10000;
+
+    // sends the 2PC calls to the participants of a transaction in parallel
+    private static final ExecutorService participantExecutor = Executors.newFixedThreadPool(PARTICIPANT_THREADS, r -> {
+        Thread thread = new Thread(r, "tm-participant");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // xids are reserved in blocks: the log of the counter only holds the
+    // end of the block in use, and is written once per block
+    private static final int XID_BLOCK = 10000;
+
+    private final AtomicInteger xidCounter = new AtomicInteger(1); // allocate unique id
+    // end of the reserved block, xids below it may have been issued
+    private volatile int xidLimit = 1;
     private String dieTime; // dieTime flag
     // resource managers of all transactions
-    private HashMap<Integer, HashSet<ResourceManager>> RMs = new HashMap<>();
-    // all active transactions
-    private HashMap<Integer, String> xids = new HashMap<>();
-    // transaction to be recovered after some RMs died or TM died
-    private HashMap<Integer, Integer> xids_to_be_recovered = new HashMap<>();
+    private Map<Integer, HashSet<ResourceManager>> RMs = new ConcurrentHashMap<>();
+    // all active transactions and their status, in memory only. Committed
+    // transactions stay until all their participants know the outcome.
+    private Map<Integer, String> xids = new ConcurrentHashMap<>();
+    // the log of the presumed abort protocol, see CoordinatorLog. Nothing
+    // is logged about transactions that do not commit, the TM presumes
+    // those it does not know aborted.
+    private CoordinatorLog log;
+    // ids of the participants, for the log
+    private Map<ResourceManager, String> rmNames = new ConcurrentHashMap<>();
+    // tells the participants the outcomes in the background
+    private OutcomeDelivery delivery;
+    // committed transactions that could not be delivered, per participant
+    // name; the RM learns them when it reconnects
+    private HashMap<String, HashSet<Integer>> pendingOutcomes = new HashMap<>();
 
     //log path
     private String xidCounterPath = "xidCounter.log";
-    private String xidsStatusPath = "xidsStatus.log";
-    private String xidsToBeRecoveredPath = "xidsToBeRecovered.log";
+    private String logPrefix = "coordinator";
+    private static final long LOG_SEGMENT_SIZE = 1 << 20;
+    private String pendingOutcomesPath = "pendingOutcomes.log";
 
     public TransactionManagerImpl() throws RemoteException {
-        xidCounter = 1;
         dieTime = "noDie";
 
+        delivery = new OutcomeDelivery(new OutcomeDelivery.Listener() {
+            public void delivered(int xid, boolean commit) {
+                if (!commit)
+                    return;
+                synchronized (xids) {
+                    xids.remove(xid);
+                }
+                logEnd(xid);
+                System.out.println("Commit delivered xid: " + xid);
+            }
+
+            public void undelivered(int xid, boolean commit, String rm) {
+                // an rm not told of an abort asks about xid, see
+                // ResourceManagerImpl.checkInDoubt(), and is answered by
+                // the presumption
+                if (commit) {
+                    System.out.println("rm " + rm + " left to recover xid: " + xid);
+                    setRecoveryLater(xid, rm);
+                }
+            }
+        });
         recover();
     }
 
@@ -66,197 +127,391 @@ public class TransactionManagerImpl
             dataDir.mkdirs();
         }
 
+        // skip the rest of the block reserved before, the first start()
+        // reserves the next one
         Object xidCounterTmp = utils.loadObject("data/" + xidCounterPath);
-        if (xidCounterTmp != null)
-            xidCounter = (Integer) xidCounterTmp;
+        if (xidCounterTmp != null) {
+            xidLimit = (Integer) xidCounterTmp;
+            xidCounter.set(xidLimit);
+        }
 
-        Object xidsToDo = utils.loadObject("data/" + xidsToBeRecoveredPath);
-        if (xidsToDo != null)
-            xids_to_be_recovered = (HashMap<Integer, Integer>) xidsToDo;
+        Object pending = utils.loadObject("data/" + pendingOutcomesPath);
+        if (pending != null)
+            pendingOutcomes = (HashMap<String, HashSet<Integer>>) pending;
 
-        Object xidsTmp = utils.loadObject("data/" + xidsStatusPath);
-        if (xidsTmp != null) {
-            HashMap<Integer, String> xids_to_be_done = (HashMap<Integer, String>) xidsTmp;
+        log = new CoordinatorLog(dataDir, logPrefix, LOG_SEGMENT_SIZE);
+        try {
+            Map<Integer, List<String>> committed = log.replay();
             System.out.println("Redo logs");
-            for (Integer xidTmp : xids_to_be_done.keySet()) {
-                String[] vals = xids_to_be_done.get(xidTmp).split("_");
-                String status = vals[0];
-                int rm_num = Integer.parseInt(vals[1]);
-                if (status.equals(COMMITTED)) {
-                    // redo_logs
-                    setRecoveryLater(xidTmp, rm_num);
-                }
-                // else, simply abort. The rms will be informed to abort transaction when they enlist
+            // the log holds committed transactions only, the others are
+            // presumed aborted. The rms will be informed to abort them when they enlist
+            for (Map.Entry<Integer, List<String>> entry : committed.entrySet()) {
+                // redo_logs
+                xids.put(entry.getKey(), COMMITTED);
+                delivery.redeliver(entry.getKey(), entry.getValue());
             }
             System.out.println("Finish redo logs.");
+        } catch (IOException e) {
+            throw new RuntimeException("Can't read the TM log", e);
         }
     }
 
     public void ping() throws RemoteException {
     }
 
-    public String enlist(int xid, ResourceManager rm) throws RemoteException {
-        if (xids_to_be_recovered.containsKey(xid)) {
-            int num = xids_to_be_recovered.get(xid);
-            synchronized (xids_to_be_recovered) {
-                if (num > 1)
-                    xids_to_be_recovered.put(xid, num - 1);
-//                else
-//                    // do not remove this transaction id if rm dies after receiving the committed message.
-//                    xids_to_be_recovered.remove(xid);
-                utils.storeObject(xids_to_be_recovered, xidsToBeRecoveredPath);
+    public Map<Integer, String> enlistAll(String rmName, ResourceManager rm, Collection<Integer> rmXids)
+            throws RemoteException {
+        rmNames.put(rm, rmName);
+        Map<Integer, String> outcomes = new HashMap<>();
+        synchronized (pendingOutcomes) {
+            HashSet<Integer> pending = pendingOutcomes.get(rmName);
+            if (pending != null) {
+                // rm holds every transaction it has prepared until it is
+                // told the outcome: those it no longer holds are done
+                if (pending.retainAll(new HashSet<>(rmXids))) {
+                    if (pending.isEmpty())
+                        pendingOutcomes.remove(rmName);
+                    utils.storeObject(pendingOutcomes, "data/" + pendingOutcomesPath);
+                }
+                for (Integer xid : pending)
+                    outcomes.put(xid, COMMITTED);
             }
-            return COMMITTED;
         }
-        if (!xids.containsKey(xid)) {
-            return ABORTED; // the xid has been aborted
+        for (Integer xid : rmXids) {
+            if (!outcomes.containsKey(xid))
+                outcomes.put(xid, enlistActive(xid, rm));
         }
+        return outcomes;
+    }
+
+    // enlists rm in xid if xid is still running, returns its status
+    private String enlistActive(int xid, ResourceManager rm) {
+        String status = xids.get(xid);
+        if (status == null) {
+            return ABORTED; // the xid has been aborted, or is presumed aborted
+        }
+        if (status.equals(COMMITTED)) {
+            return COMMITTED; // its commit is still being delivered
+        }
+        // the status is left as it is: a commit may be deciding xid
         synchronized (RMs) {
             if (!RMs.containsKey(xid)) // recover from failure.
                 RMs.put(xid, new HashSet<>());
             HashSet<ResourceManager> xidRMs = RMs.get(xid);
             xidRMs.add(rm);
-            synchronized (xids) {
-                xids.put(xid, INITED + "_" + xidRMs.size());
-                utils.storeObject(xids, "data/" + xidsStatusPath);
-            }
         }
         return INITED;
     }
 
     @Override
     public int start() throws RemoteException {
-        synchronized (xidCounter) {
-            Integer newXid = xidCounter++;
-            utils.storeObject(xidCounter, "data/" + xidCounterPath);
+        int newXid = xidCounter.getAndIncrement();
+        if (newXid >= xidLimit)
+            reserveXids(newXid);
 
-            // store xid
-            synchronized (xids) {
-                xids.put(newXid, INITED + "_" + 0);
-                utils.storeObject(xids, "data/" + xidsStatusPath);
-            }
+        xids.put(newXid, INITED);
+        RMs.put(newXid, new HashSet<>());
+        return newXid;
+    }
 
-            synchronized (RMs) {
-                RMs.put(newXid, new HashSet<>());
-            }
+    // reserves blocks of xids up to xid, on disk before xid is issued
+    private synchronized void reserveXids(int xid) throws RemoteException {
+        while (xid >= xidLimit) {
+            int limit = xidLimit + XID_BLOCK;
+            if (!utils.storeObject(limit, "data/" + xidCounterPath))
+                throw new RemoteException("Can't write xid counter to disk");
+            xidLimit = limit;
+        }
+    }
+
+    @Override
+    public boolean commit(int xid, Collection<ResourceManager> participants)
+            throws RemoteException, TransactionAbortedException, InvalidTransactionException {
+        addParticipants(xid, participants);
+        return commit(xid);
+    }
 
-            return newXid;
+    @Override
+    public void abort(int xid, Collection<ResourceManager> participants)
+            throws RemoteException, InvalidTransactionException {
+        addParticipants(xid, participants);
+        abort(xid);
+    }
+
+    // adds the participants of xid its caller has tracked to those that
+    // have enlisted
+    private void addParticipants(int xid, Collection<ResourceManager> participants) {
+        synchronized (RMs) {
+            HashSet<ResourceManager> xidRMs = RMs.get(xid);
+            if (xidRMs != null)
+                xidRMs.addAll(participants);
         }
     }
 
     @Override
     public boolean commit(int xid) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
-        if (!xids.containsKey(xid))
+        String status = xids.get(xid);
+        if (status == null)
             throw new TransactionAbortedException(xid, "TM");
-        HashSet<ResourceManager> xidRMs = RMs.get(xid);
+        if (status.equals(COMMITTED))
+            return true;
+        HashSet<ResourceManager> xidRMs;
+        List<ResourceManager> participants;
+        synchronized (RMs) {
+            xidRMs = RMs.get(xid);
+            if (xidRMs == null) // aborted meanwhile
+                throw new TransactionAbortedException(xid, "TM");
+            participants = new ArrayList<>(xidRMs);
+        }
+        if (participants.size() == 1)
+            return commitOnePhase(xid, participants.get(0));
         // 2pc
         // prepare phase
         synchronized (xids) {
-            xids.put(xid, PREPARING + "_" + xidRMs.size());
-            utils.storeObject(xids, "data/" + xidsStatusPath);
+            xids.put(xid, PREPARING);
         }
-        for (ResourceManager rm : xidRMs) {
+        List<Future<Integer>> prepares = callParticipants(participants, rm -> {
+            System.out.println("call rm prepare: " + xid + ": " + rm.getID());
+            return rm.prepare(xid);
+        });
+        boolean prepared = true;
+        // participants that only read: they are done with xid
+        List<ResourceManager> readOnly = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + PARTICIPANT_TIMEOUT;
+        for (int i = 0; i < participants.size(); i++) {
             try {
-                System.out.println("call rm prepare: " + xid + ": " + rm.getID());
-                if (!rm.prepare(xid)) {
-                    // rm is not prepared.
-                    this.abort(xid);
-                    throw new TransactionAbortedException(xid, "RM aborted");
-                }
+                int vote = waitFor(prepares.get(i), deadline);
+                if (vote == ResourceManager.READ_ONLY)
+                    readOnly.add(participants.get(i));
+                else if (vote != ResourceManager.PREPARED)
+                    prepared = false; // rm is not prepared.
             } catch (Exception e) {
-                // rm dies before or during prepare
-                System.out.println("rm prepare failed: " + rm);
+                // rm dies before or during prepare, or does not answer
+                System.out.println("rm prepare failed: " + participants.get(i));
                 e.printStackTrace();
-                this.abort(xid);
-                throw new TransactionAbortedException(xid, "RM aborted");
+                prepared = false;
+            }
+        }
+        synchronized (RMs) {
+            xidRMs.removeAll(readOnly);
+        }
+        if (!prepared) {
+            this.abort(xid);
+            throw new TransactionAbortedException(xid, "RM aborted");
+        }
+        participants.removeAll(readOnly);
+        if (participants.isEmpty()) {
+            // nothing written: there is no outcome to log, nor to send
+            synchronized (RMs) {
+                RMs.remove(xid);
+            }
+            synchronized (xids) {
+                xids.remove(xid);
             }
+            System.out.println("Commit read only xid: " + xid);
+            return true;
         }
         // prepared, die before commit if needed
         if (dieTime.equals("BeforeCommit"))
             dieNow();
 
         // log commit with xid
+        Map<ResourceManager, String> named = nameParticipants(participants);
+        if (named == null) {
+            this.abort(xid);
+            throw new TransactionAbortedException(xid, "RM aborted");
+        }
+        if (!logCommit(xid, named.values())) {
+            this.abort(xid);
+            throw new TransactionAbortedException(xid, "TM log");
+        }
         synchronized (xids) {
-            xids.put(xid, COMMITTED + "_" + xidRMs.size());
-            utils.storeObject(xids, "data/" + xidsStatusPath);
+            xids.put(xid, COMMITTED);
         }
 
         // die after commit log was written if needed.
         if (dieTime.equals("AfterCommit"))
             dieNow();
 
-        // commit phase
-        for (ResourceManager rm : xidRMs) {
-            try {
-                System.out.println("call rm commit " + xid + ": " + rm.getID());
-                rm.commit(xid); // the function return means done signal.
-            } catch (Exception e) {
-                // rm dies before or during commit
-                System.out.println("rm is down before commit: " + rm);
-                // let the rm to be recovered when it is relaunched.
-                setRecoveryLater(xid, 1);
-            }
-        }
-
-        // commit log record + completion log record
-        // do nothing. actually do not need completion log here because the failure of the following
-        // codes can not be checked in our test condition.233
+        // commit phase: the outcome is durable, the participants are told
+        // in the background and xid ends once they all know
         synchronized (RMs) {
-            // remove committed transactions
             RMs.remove(xid);
         }
-        synchronized (xids) {
-            xids.remove(xid);
-            utils.storeObject(xids, "data/" + xidsStatusPath);
-        }
+        delivery.deliver(xid, true, named);
 
         System.out.println("Commit xid: " + xid);
         // success
         return true;
     }
 
-    private void setRecoveryLater(int xid, int num) {
-        synchronized (xids_to_be_recovered) {
-            // use number instead of rm info, for the rm message is difficult to get
-            // TODO more solid implementation is needed.
-            if (xids_to_be_recovered.containsKey(xid)) {
-                xids_to_be_recovered.put(xid, xids_to_be_recovered.get(xid) + num);
-            } else {
-                xids_to_be_recovered.put(xid, num);
+    // forces the commit record of xid to the log before any participant is
+    // told to commit, returns false if it could not
+    private boolean logCommit(int xid, Collection<String> participants) {
+        try {
+            log.commit(xid, new ArrayList<>(participants));
+            return true;
+        } catch (IOException e) {
+            System.out.println("TM log failed: " + e);
+            return false;
+        }
+    }
+
+    // ends xid, whose participants have all been told its outcome or are
+    // left for recovery. The record is not forced, a TM crash before it is
+    // on disk redoes the commit.
+    private void logEnd(int xid) {
+        try {
+            log.end(xid);
+        } catch (IOException e) {
+            System.out.println("TM log failed: " + e);
+        }
+    }
+
+    // participant stub -> name, or null if a participant could not be asked
+    private Map<ResourceManager, String> nameParticipants(List<ResourceManager> participants) {
+        Map<ResourceManager, String> named = new HashMap<>();
+        try {
+            for (ResourceManager rm : participants)
+                named.put(rm, participantName(rm));
+        } catch (RemoteException e) {
+            System.out.println("rm is down before commit: " + e);
+            return null;
+        }
+        return named;
+    }
+
+    private String participantName(ResourceManager rm) throws RemoteException {
+        String name = rmNames.get(rm);
+        if (name == null) {
+            name = rm.getID();
+            rmNames.put(rm, name);
+        }
+        return name;
+    }
+
+    // keeps the commit of xid for rm to learn when it reconnects
+    private void setRecoveryLater(int xid, String rm) {
+        synchronized (pendingOutcomes) {
+            HashSet<Integer> pending = pendingOutcomes.get(rm);
+            if (pending == null) {
+                pending = new HashSet<>();
+                pendingOutcomes.put(rm, pending);
             }
-            utils.storeObject(xids_to_be_recovered, xidsToBeRecoveredPath);
+            if (pending.add(xid))
+                utils.storeObject(pendingOutcomes, "data/" + pendingOutcomesPath);
+        }
+    }
+
+    // commits xid, whose only participant is rm, in one call to rm instead
+    // of two, and without log records: rm decides and logs the outcome.
+    private boolean commitOnePhase(int xid, ResourceManager rm)
+            throws RemoteException, TransactionAbortedException, InvalidTransactionException {
+        // the decision is rm's: the die times stand where the 2pc ones do,
+        // before and after it
+        if (dieTime.equals("BeforeCommit"))
+            dieNow();
+        boolean committed;
+        try {
+            System.out.println("call rm commit one phase " + xid + ": " + rm.getID());
+            committed = rm.commitOnePhase(xid);
+        } catch (RemoteException e) {
+            // rm died, or the call failed while rm goes on: rm has aborted
+            // xid unless it has logged the commit, in which case it completes
+            // it, also when relaunched. Only rm knows which, so xid is
+            // forgotten without telling rm anything. If rm still holds it
+            // and asks, xid is presumed aborted.
+            System.out.println("outcome of one phase commit unknown: " + xid);
+            forget(xid);
+            throw new RemoteException("outcome of one phase commit unknown, xid " + xid, e);
+        }
+        if (dieTime.equals("AfterCommit"))
+            dieNow();
+
+        forget(xid);
+        if (!committed) {
+            System.out.println("Abort xid: " + xid);
+            throw new TransactionAbortedException(xid, "RM aborted");
+        }
+        System.out.println("Commit xid: " + xid);
+        return true;
+    }
+
+    // ends xid, which no participant is to be told about
+    private void forget(int xid) {
+        synchronized (RMs) {
+            RMs.remove(xid);
+        }
+        synchronized (xids) {
+            xids.remove(xid);
         }
     }
 
     @Override
     public void abort(int xid) throws RemoteException, InvalidTransactionException {
-        if (!xids.containsKey(xid)) {
+        String status = xids.get(xid);
+        if (status == null || status.equals(COMMITTED)) {
             throw new InvalidTransactionException(xid, "abort");
         }
-        HashSet<ResourceManager> xidRMs = RMs.get(xid);
-        for (ResourceManager rm : xidRMs) {
-            try {
-                System.out.println("call rm abort " + xid + " : " + rm.getID());
-                rm.abort(xid);
-                System.out.println("rm abort success: " + rm.getID());
-            } catch (Exception e) {
-                System.out.println("Some RM is down: " + rm);
-            }
-        }
+        HashSet<ResourceManager> xidRMs;
         synchronized (RMs) {
             // remove aborted transactions
-            RMs.remove(xid);
+            xidRMs = RMs.remove(xid);
         }
         synchronized (xids) {
-            if (xids.containsKey(xid)) {
-                xids.remove(xid);
-                utils.storeObject(xids, "data/" + xidsStatusPath);
+            xids.remove(xid);
+        }
+        // the participants are told in the background. Nothing is logged:
+        // one not told asks about xid later, and xid is presumed aborted.
+        Map<ResourceManager, String> named = new HashMap<>();
+        if (xidRMs != null) {
+            for (ResourceManager rm : xidRMs) {
+                String name = null;
+                try {
+                    name = participantName(rm);
+                } catch (RemoteException e) {
+                    // retried on the stub
+                }
+                named.put(rm, name);
             }
         }
+        delivery.deliver(xid, false, named);
 
         System.out.println("Abort xid: " + xid);
     }
 
+    // a 2PC call to one participant
+    private interface ParticipantCall<T> {
+        T call(ResourceManager rm) throws Exception;
+    }
+
+    // starts call on all participants at once, the futures are in the
+    // order of participants
+    private static <T> List<Future<T>> callParticipants(List<ResourceManager> participants, ParticipantCall<T> call) {
+        List<Future<T>> futures = new ArrayList<>();
+        for (ResourceManager rm : participants) {
+            futures.add(participantExecutor.submit((Callable<T>) () -> call.call(rm)));
+        }
+        return futures;
+    }
+
+    // waits for the answer of a participant until deadline, and returns it;
+    // throws what the call failed with, or TimeoutException after cancelling
+    // the call. The caller is bounded by deadline, not the call: RMI I/O
+    // does not answer interrupts, a hung participant holds its pool thread
+    // until its connection fails.
+    private static <T> T waitFor(Future<T> future, long deadline) throws Exception {
+        long timeout = Math.max(deadline - System.currentTimeMillis(), 0);
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (java.util.concurrent.TimeoutException e) {
+            future.cancel(true);
+            throw e;
+        } catch (java.util.concurrent.ExecutionException e) {
+            throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+        }
+    }
+
     public boolean dieNow() throws RemoteException {
         System.exit(1);
         return true; // We won't ever get here since we exited above;
@@ -6,9 +6,14 @@ import transaction.entity.*;
 import java.rmi.Naming;
 import java.rmi.RMISecurityManager;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Workflow Controller for the Distributed Travel Reservation System.
@@ -24,6 +29,10 @@ public class WorkflowControllerImpl
 
     protected TransactionManager tm = null;
     private HashSet<Integer> xids = new HashSet<>();
+    // the RMs each active transaction has called, handed to the TM at
+    // commit or abort instead of the RMs enlisting themselves. In memory
+    // only: after a crash of the WC, all RMs are handed over.
+    private Map<Integer, Set<ResourceManager>> participants = new ConcurrentHashMap<>();
     private ResourceManager rmFlights = null;
     private ResourceManager rmRooms = null;
     private ResourceManager rmCars = null;
@@ -85,8 +94,9 @@ public class WorkflowControllerImpl
             InvalidTransactionException {
         if (!xids.contains(xid))
             throw new InvalidTransactionException(xid, "");
-        boolean tmResult = tm.commit(xid);
+        boolean tmResult = tm.commit(xid, participantsOf(xid));
         xids.remove(xid);
+        participants.remove(xid);
         utils.storeObject(xids, xidsLog);
         return tmResult;
     }
@@ -96,11 +106,27 @@ public class WorkflowControllerImpl
             InvalidTransactionException {
         if (!xids.contains(xid))
             throw new InvalidTransactionException(xid, "");
-        tm.abort(xid);
+        tm.abort(xid, participantsOf(xid));
         xids.remove(xid);
+        participants.remove(xid);
         utils.storeObject(xids, xidsLog);
     }
 
+    // records that xid calls rm, and returns rm
+    private ResourceManager participant(int xid, ResourceManager rm) {
+        participants.computeIfAbsent(xid, x -> ConcurrentHashMap.newKeySet()).add(rm);
+        return rm;
+    }
+
+    // the RMs xid has called; all of them if the WC has restarted since it
+    // started, those it has not called vote read only
+    private Collection<ResourceManager> participantsOf(int xid) {
+        Set<ResourceManager> rms = participants.get(xid);
+        if (rms == null)
+            return new HashSet<>(Arrays.asList(rmFlights, rmRooms, rmCars, rmCustomers));
+        return new HashSet<>(rms);
+    }
+
 
     // ADMINISTRATIVE INTERFACE
     public boolean addFlight(int xid, String flightNum, int numSeats, int price)
@@ -110,7 +136,7 @@ public class WorkflowControllerImpl
         if (flightNum == null || numSeats < 0)
             return false;
         // check whether is flight exists or not
-        ResourceItem item = queryItem(rmFlights, xid, flightNum);
+        ResourceItem item = queryItemForUpdate(rmFlights, xid, flightNum);
 
         if (item != null) { // exist, then update
             Flight f = (Flight) item;
@@ -118,7 +144,7 @@ public class WorkflowControllerImpl
             if (price >= 0)
                 f.setPrice(price);
             try {
-                return rmFlights.update(xid, rmFlights.getID(), flightNum, f);
+                return participant(xid, rmFlights).update(xid, rmFlights.getID(), flightNum, f);
             } catch (DeadlockException e) {
                 // dead lock happened, quit this transaction
                 abort(xid);
@@ -129,7 +155,7 @@ public class WorkflowControllerImpl
                 price = 0;
             Flight f = new Flight(flightNum, price, numSeats);
             try {
-                return rmFlights.insert(xid, rmFlights.getID(), f);
+                return participant(xid, rmFlights).insert(xid, rmFlights.getID(), f);
             } catch (DeadlockException e) {
                 // dead lock happened, quit this transaction
                 abort(xid);
@@ -145,14 +171,14 @@ public class WorkflowControllerImpl
         if (!xids.contains(xid))
             throw new InvalidTransactionException(xid, "");
         try {
-            Collection<ResourceItem> resvs = rmCustomers.query(xid, ResourceManager.TableNameReservations,
+            Collection<ResourceItem> resvs = participant(xid, rmCustomers).query(xid, ResourceManager.TableNameReservations,
                     Reservation.INDEX_RESERV_KEY, flightNum);
             if (!resvs.isEmpty())
                 return false;
-            ResourceItem item = queryItem(rmFlights, xid, flightNum);
+            ResourceItem item = queryItemForUpdate(rmFlights, xid, flightNum);
             if (item == null)
                 return false;
-            rmFlights.delete(xid, rmFlights.getID(), flightNum);
+            participant(xid, rmFlights).delete(xid, rmFlights.getID(), flightNum);
         } catch (DeadlockException e) {
             // dead lock happened, quit this transaction
             abort(xid);
@@ -172,7 +198,71 @@ public class WorkflowControllerImpl
 
         ResourceItem item = null;
         try {
-            item = rm.query(xid, rm.getID(), key);
+            item = participant(xid, rm).query(xid, rm.getID(), key);
+        } catch (DeadlockException e) {
+            // dead lock happened, quit this transaction
+            abort(xid);
+            throw new TransactionAbortedException(xid, "This transaction cause dead lock: " + e.getMessage());
+        }
+
+        return item;
+    }
+
+    // queryItem() locking only one column group of the item, see
+    // ResourceManager.queryGroup()
+    private ResourceItem queryItemGroup(ResourceManager rm, int xid, String key, String group)
+            throws RemoteException,
+            TransactionAbortedException,
+            InvalidTransactionException {
+        if (!xids.contains(xid))
+            throw new InvalidTransactionException(xid, "");
+
+        ResourceItem item = null;
+        try {
+            item = participant(xid, rm).queryGroup(xid, rm.getID(), key, group);
+        } catch (DeadlockException e) {
+            // dead lock happened, quit this transaction
+            abort(xid);
+            throw new TransactionAbortedException(xid, "This transaction cause dead lock: " + e.getMessage());
+        }
+
+        return item;
+    }
+
+    // queryItem() for an item the transaction goes on to update or delete:
+    // the UPDATE lock keeps concurrent bookers of the same item from
+    // deadlocking on their READ to WRITE conversions.
+    private ResourceItem queryItemForUpdate(ResourceManager rm, int xid, String key)
+            throws RemoteException,
+            TransactionAbortedException,
+            InvalidTransactionException {
+        if (!xids.contains(xid))
+            throw new InvalidTransactionException(xid, "");
+
+        ResourceItem item = null;
+        try {
+            item = participant(xid, rm).queryForUpdate(xid, rm.getID(), key);
+        } catch (DeadlockException e) {
+            // dead lock happened, quit this transaction
+            abort(xid);
+            throw new TransactionAbortedException(xid, "This transaction cause dead lock: " + e.getMessage());
+        }
+
+        return item;
+    }
+
+    // adds delta to the numAvail of an item by escrow, see
+    // ResourceManager.escrow()
+    private ResourceItem escrowItem(ResourceManager rm, int xid, String key, int delta)
+            throws RemoteException,
+            TransactionAbortedException,
+            InvalidTransactionException {
+        if (!xids.contains(xid))
+            throw new InvalidTransactionException(xid, "");
+
+        ResourceItem item = null;
+        try {
+            item = participant(xid, rm).escrow(xid, rm.getID(), key, delta);
         } catch (DeadlockException e) {
             // dead lock happened, quit this transaction
             abort(xid);
@@ -188,7 +278,7 @@ public class WorkflowControllerImpl
             InvalidTransactionException {
         if (location == null || numRooms < 0) // see interface doc for requirement
             return false;
-        ResourceItem item = queryItem(rmRooms, xid, location);
+        ResourceItem item = queryItemForUpdate(rmRooms, xid, location);
 
         if (item != null) {
             Hotel h = (Hotel) item;
@@ -196,7 +286,7 @@ public class WorkflowControllerImpl
             if (price >= 0)
                 h.setPrice(price);
             try {
-                return rmRooms.update(xid, rmRooms.getID(), location, h);
+                return participant(xid, rmRooms).update(xid, rmRooms.getID(), location, h);
             } catch (DeadlockException e) {
                 // dead lock happened, quit this transaction
                 abort(xid);
@@ -207,7 +297,7 @@ public class WorkflowControllerImpl
                 price = 0;
             Hotel h = new Hotel(location, price, numRooms);
             try {
-                return rmRooms.insert(xid, rmRooms.getID(), h);
+                return participant(xid, rmRooms).insert(xid, rmRooms.getID(), h);
             } catch (DeadlockException e) {
                 // dead lock happened, quit this transaction
                 abort(xid);
@@ -224,7 +314,7 @@ public class WorkflowControllerImpl
             throw new InvalidTransactionException(xid, "");
         if (numRooms < 0)
             return false;
-        ResourceItem item = queryItem(rmRooms, xid, location);
+        ResourceItem item = queryItemForUpdate(rmRooms, xid, location);
         if (item == null)
             return false;
         Hotel h = (Hotel) (item);
@@ -232,7 +322,7 @@ public class WorkflowControllerImpl
             return false;
         h.deleteRooms(numRooms);
         try {
-            return rmRooms.update(xid, rmRooms.getID(), location, h);
+            return participant(xid, rmRooms).update(xid, rmRooms.getID(), location, h);
         } catch (DeadlockException e) {
             // dead lock happened, quit this transaction
             abort(xid);
@@ -247,7 +337,7 @@ public class WorkflowControllerImpl
         if (location == null || numCars < 0)
             return false;
 
-        ResourceItem item = queryItem(rmCars, xid, location);
+        ResourceItem item = queryItemForUpdate(rmCars, xid, location);
 
         if (item != null) {
             Car c = (Car) item;
@@ -255,7 +345,7 @@ public class WorkflowControllerImpl
             if (price >= 0)
                 c.setPrice(price);
             try {
-                return rmCars.update(xid, rmCars.getID(), location, c);
+                return participant(xid, rmCars).update(xid, rmCars.getID(), location, c);
             } catch (DeadlockException e) {
                 // dead lock happened, quit this transaction
                 abort(xid);
@@ -266,7 +356,7 @@ public class WorkflowControllerImpl
                 price = 0;
             Car car = new Car(location, price, numCars);
             try {
-                return rmCars.insert(xid, rmCars.getID(), car);
+                return participant(xid, rmCars).insert(xid, rmCars.getID(), car);
             } catch (DeadlockException e) {
                 // dead lock happened, quit this transaction
                 abort(xid);
@@ -283,7 +373,7 @@ public class WorkflowControllerImpl
             throw new InvalidTransactionException(xid, "");
         if (numCars < 0)
             return false;
-        ResourceItem item = queryItem(rmCars, xid, location);
+        ResourceItem item = queryItemForUpdate(rmCars, xid, location);
         if (item == null)
             return false;
         Car c = (Car) item;
@@ -291,7 +381,7 @@ public class WorkflowControllerImpl
             return false;
         c.deleteCars(numCars);
         try {
-            return rmCars.update(xid, rmCars.getID(), location, c);
+            return participant(xid, rmCars).update(xid, rmCars.getID(), location, c);
         } catch (DeadlockException e) {
             // dead lock happened, quit this transaction
             abort(xid);
@@ -308,7 +398,7 @@ public class WorkflowControllerImpl
             return true;
         Customer customer = new Customer(custName);
         try {
-            return rmCustomers.insert(xid, rmCustomers.getID(), customer);
+            return participant(xid, rmCustomers).insert(xid, rmCustomers.getID(), customer);
         } catch (DeadlockException e) {
             // dead lock happened, quit this transaction
             abort(xid);
@@ -319,28 +409,22 @@ public class WorkflowControllerImpl
     // un reserve all reservations for the custName
     private void unReserveAll(int xid, String custName) throws InvalidTransactionException,
             RemoteException, TransactionAbortedException, DeadlockException, InvalidIndexException {
-        Collection<ResourceItem> results = rmCustomers.query(xid, ResourceManager.TableNameReservations,
+        Collection<ResourceItem> results = participant(xid, rmCustomers).query(xid, ResourceManager.TableNameReservations,
                 Reservation.INDEX_CUSTNAME, custName);
         for (ResourceItem re : results) {
             Reservation rvt = (Reservation) re;
             String resvKey = rvt.getResvKey();
             switch (rvt.getResvType()) {
                 case Reservation.RESERVATION_TYPE_FLIGHT: {
-                    Flight f = (Flight) queryItem(rmFlights, xid, resvKey);
-                    f.unbookSeats(1);
-                    rmFlights.update(xid, rmFlights.getID(), resvKey, f);
+                    escrowItem(rmFlights, xid, resvKey, 1);
                     break;
                 }
                 case Reservation.RESERVATION_TYPE_CAR: {
-                    Car c = (Car) queryItem(rmCars, xid, resvKey);
-                    c.unbookCars(1);
-                    rmCars.update(xid, rmCars.getID(), resvKey, c);
+                    escrowItem(rmCars, xid, resvKey, 1);
                     break;
                 }
                 case Reservation.RESERVATION_TYPE_HOTEL: {
-                    Hotel h = (Hotel) queryItem(rmRooms, xid, resvKey);
-                    h.unbookRooms(1);
-                    rmRooms.update(xid, rmRooms.getID(), resvKey, h);
+                    escrowItem(rmRooms, xid, resvKey, 1);
                 }
             }
         }
@@ -352,11 +436,11 @@ public class WorkflowControllerImpl
             InvalidTransactionException {
         if (custName == null)
             return false;
-        ResourceItem item = queryItem(rmCustomers, xid, custName);
+        ResourceItem item = queryItemForUpdate(rmCustomers, xid, custName);
         if (item == null)
             return false;
         try {
-            rmCustomers.delete(xid, rmCustomers.getID(), custName);
+            participant(xid, rmCustomers).delete(xid, rmCustomers.getID(), custName);
         } catch (DeadlockException e) {
             // dead lock happened, quit this transaction
             abort(xid);
@@ -366,7 +450,7 @@ public class WorkflowControllerImpl
             // un reserve all reservations
             unReserveAll(xid, custName);
             // delete reservations
-            rmCustomers.delete(xid, ResourceManager.TableNameReservations, Reservation.INDEX_CUSTNAME, custName);
+            participant(xid, rmCustomers).delete(xid, ResourceManager.TableNameReservations, Reservation.INDEX_CUSTNAME, custName);
         } catch (DeadlockException e) {
             // dead lock happened, quit this transaction
             abort(xid);
@@ -385,7 +469,7 @@ public class WorkflowControllerImpl
             InvalidTransactionException {
         if (flightNum == null)
             return -1;
-        ResourceItem item = queryItem(rmFlights, xid, flightNum);
+        ResourceItem item = queryItemGroup(rmFlights, xid, flightNum, ResourceItem.GROUP_INVENTORY);
         if (item == null)
             return -1;
         return ((Flight) item).getNumAvail();
@@ -397,7 +481,7 @@ public class WorkflowControllerImpl
             InvalidTransactionException {
         if (flightNum == null)
             return -1;
-        ResourceItem item = queryItem(rmFlights, xid, flightNum);
+        ResourceItem item = queryItemGroup(rmFlights, xid, flightNum, ResourceItem.GROUP_PRICE);
         if (item == null)
             return -1;
         return ((Flight) item).getPrice();
@@ -409,7 +493,7 @@ public class WorkflowControllerImpl
             InvalidTransactionException {
         if (location == null)
             return -1;
-        ResourceItem item = queryItem(rmRooms, xid, location);
+        ResourceItem item = queryItemGroup(rmRooms, xid, location, ResourceItem.GROUP_INVENTORY);
         if (item == null)
             return -1;
         return ((Hotel) item).getNumAvail();
@@ -421,7 +505,7 @@ public class WorkflowControllerImpl
             InvalidTransactionException {
         if (location == null)
             return -1;
-        ResourceItem item = queryItem(rmRooms, xid, location);
+        ResourceItem item = queryItemGroup(rmRooms, xid, location, ResourceItem.GROUP_PRICE);
         if (item == null)
             return -1;
         return ((Hotel) item).getPrice();
@@ -433,7 +517,7 @@ public class WorkflowControllerImpl
             InvalidTransactionException {
         if (location == null)
             return -1;
-        ResourceItem item = queryItem(rmCars, xid, location);
+        ResourceItem item = queryItemGroup(rmCars, xid, location, ResourceItem.GROUP_INVENTORY);
         if (item == null)
             return -1;
         return ((Car) item).getNumAvail();
@@ -445,7 +529,7 @@ public class WorkflowControllerImpl
             InvalidTransactionException {
         if (location == null)
             return -1;
-        ResourceItem item = queryItem(rmCars, xid, location);
+        ResourceItem item = queryItemGroup(rmCars, xid, location, ResourceItem.GROUP_PRICE);
         if (item == null)
             return -1;
         return ((Car) item).getPrice();
@@ -462,7 +546,7 @@ public class WorkflowControllerImpl
             return -1;
         Collection<ResourceItem> results = null;
         try {
-            results = rmCustomers.query(xid, ResourceManager.TableNameReservations,
+            results = participant(xid, rmCustomers).query(xid, ResourceManager.TableNameReservations,
                     Reservation.INDEX_CUSTNAME, custName);
         } catch (DeadlockException e) {
             // dead lock happened, quit this transaction
@@ -492,22 +576,11 @@ public class WorkflowControllerImpl
         ResourceItem cust = queryItem(rmCustomers, xid, custName);
         if (cust == null)
             return false;
-        ResourceItem flight = queryItem(rmFlights, xid, flightNum);
-        if (flight == null)
+        // take the unit by escrow, so that concurrent bookings of the
+        // same item do not wait for each other
+        if (escrowItem(rmFlights, xid, flightNum, -1) == null)
             return false;
-        Flight f = (Flight) flight;
-        if (f.getNumAvail() <= 0)
-            return false;
-        Reservation reserv = new Reservation(custName, Reservation.RESERVATION_TYPE_FLIGHT, flightNum, f.getPrice());
-        try {
-            rmCustomers.insert(xid, ResourceManager.TableNameReservations, reserv);
-            f.bookSeats(1);
-            rmFlights.update(xid, rmFlights.getID(), flightNum, f);
-        } catch (DeadlockException e) {
-            // dead lock happened, quit this transaction
-            abort(xid);
-            throw new TransactionAbortedException(xid, "This transaction cause dead lock: " + e.getMessage());
-        }
+        addReservation(xid, custName, rmFlights, flightNum);
         return true;
     }
 
@@ -520,22 +593,11 @@ public class WorkflowControllerImpl
         ResourceItem cust = queryItem(rmCustomers, xid, custName);
         if (cust == null)
             return false;
-        ResourceItem car = queryItem(rmCars, xid, location);
-        if (car == null)
+        // take the unit by escrow, so that concurrent bookings of the
+        // same item do not wait for each other
+        if (escrowItem(rmCars, xid, location, -1) == null)
             return false;
-        Car c = (Car) car;
-        if (c.getNumAvail() <= 0)
-            return false;
-        Reservation reserv = new Reservation(custName, Reservation.RESERVATION_TYPE_CAR, location, c.getPrice());
-        try {
-            rmCustomers.insert(xid, ResourceManager.TableNameReservations, reserv);
-            c.bookCars(1);
-            rmCars.update(xid, rmCars.getID(), location, c);
-        } catch (DeadlockException e) {
-            // dead lock happened, quit this transaction
-            abort(xid);
-            throw new TransactionAbortedException(xid, "This transaction cause dead lock: " + e.getMessage());
-        }
+        addReservation(xid, custName, rmCars, location);
         return true;
     }
 
@@ -549,24 +611,11 @@ public class WorkflowControllerImpl
         ResourceItem cust = queryItem(rmCustomers, xid, custName);
         if (cust == null)
             return false;
-        ResourceItem hotel = queryItem(rmRooms, xid, location);
-        if (hotel == null)
+        // take the unit by escrow, so that concurrent bookings of the
+        // same item do not wait for each other
+        if (escrowItem(rmRooms, xid, location, -1) == null)
             return false;
-
-        // book room
-        Hotel h = (Hotel) hotel;
-        if (h.getNumAvail() <= 0)
-            return false;
-        Reservation reserv = new Reservation(custName, Reservation.RESERVATION_TYPE_HOTEL, location, h.getPrice());
-        try {
-            rmCustomers.insert(xid, ResourceManager.TableNameReservations, reserv);
-            h.bookRooms(1);
-            rmRooms.update(xid, rmRooms.getID(), location, h);
-        } catch (DeadlockException e) {
-            // dead lock happened, quit this transaction
-            abort(xid);
-            throw new TransactionAbortedException(xid, "This transaction cause dead lock: " + e.getMessage());
-        }
+        addReservation(xid, custName, rmRooms, location);
         return true;
     }
 
@@ -577,44 +626,41 @@ public class WorkflowControllerImpl
             throw new InvalidTransactionException(xid, "");
         if (custName == null || location == null || flightNumList == null)
             return false;
-        ResourceItem cust = queryItem(rmCustomers, xid, custName);
+        ResourceItem cust = queryItemForUpdate(rmCustomers, xid, custName);
         if (cust == null)
             return false;
 
-        // check flights
+        // take the units by escrow, as reserveFlight() and the others do:
+        // an UPDATE lock on an item would keep concurrent escrows off it.
+        // The itinerary is booked whole or not at all, a unit missing gives
+        // back those taken before it.
+        List<ResourceManager> rms = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
         for (Object flight : flightNumList) {
-            String flightNum = (String) flight;
-            ResourceItem item = queryItem(rmFlights, xid, flightNum);
-            if (item == null)
-                return false;
-            Flight f = (Flight) item;
-            if (f.getNumAvail() <= 0)
-                return false;
+            rms.add(rmFlights);
+            keys.add((String) flight);
         }
-        // check rooms
         if (needRoom) {
-            ResourceItem item = queryItem(rmRooms, xid, location);
-            if (item == null)
-                return false;
-            Hotel h = (Hotel) item;
-            if (h.getNumAvail() <= 0)
-                return false;
+            rms.add(rmRooms);
+            keys.add(location);
         }
-        // check cars
         if (needCar) {
-            ResourceItem item = queryItem(rmCars, xid, location);
-            if (item == null)
-                return false;
-            Car c = (Car) item;
-            if (c.getNumAvail() <= 0)
+            rms.add(rmCars);
+            keys.add(location);
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            if (escrowItem(rms.get(i), xid, keys.get(i), -1) == null) {
+                for (int j = 0; j < i; j++)
+                    escrowItem(rms.get(j), xid, keys.get(j), 1);
                 return false;
+            }
         }
 
         //   the info of customers and get the WRITE lock.
         // But, in our implementations, all new reservations are stored in Reservations table.
         // We just need the READ lock for customers.
         try {
-            rmCustomers.update(xid, rmCustomers.getID(), custName, cust); // just to set WRITE lock for the test
+            participant(xid, rmCustomers).update(xid, rmCustomers.getID(), custName, cust); // just to set WRITE lock for the test
         } catch (DeadlockException e) {
             // dead lock happened, quit this transaction
             abort(xid);
@@ -622,25 +668,36 @@ public class WorkflowControllerImpl
         }
         // add this to pass the test.
 
-        // book flights
-        for (Object flight : flightNumList) {
-            String flightNum = (String) flight;
-            if (!reserveFlight(xid, custName, flightNum))
-                return false;
-        }
-        //book room
-        if (needRoom) {
-            if (!reserveRoom(xid, custName, location))
-                return false;
-        }
-        //book car
-        if (needCar) {
-            if (!reserveCar(xid, custName, location))
-                return false;
-        }
+        // book the units taken
+        for (int i = 0; i < keys.size(); i++)
+            addReservation(xid, custName, rms.get(i), keys.get(i));
         return true;
     }
 
+    // adds to the bill of custName a unit of an item the transaction has
+    // taken by escrow
+    private void addReservation(int xid, String custName, ResourceManager rm, String key)
+            throws RemoteException,
+            TransactionAbortedException,
+            InvalidTransactionException {
+        // the escrow leaves the price unlocked, lock it for the bill
+        ResourceItem item = queryItemGroup(rm, xid, key, ResourceItem.GROUP_PRICE);
+        Reservation reserv;
+        if (item instanceof Flight)
+            reserv = new Reservation(custName, Reservation.RESERVATION_TYPE_FLIGHT, key, ((Flight) item).getPrice());
+        else if (item instanceof Hotel)
+            reserv = new Reservation(custName, Reservation.RESERVATION_TYPE_HOTEL, key, ((Hotel) item).getPrice());
+        else
+            reserv = new Reservation(custName, Reservation.RESERVATION_TYPE_CAR, key, ((Car) item).getPrice());
+        try {
+            participant(xid, rmCustomers).insert(xid, ResourceManager.TableNameReservations, reserv);
+        } catch (DeadlockException e) {
+            // dead lock happened, quit this transaction
+            abort(xid);
+            throw new TransactionAbortedException(xid, "This transaction cause dead lock: " + e.getMessage());
+        }
+    }
+
     // TECHNICAL/TESTING INTERFACE
     public boolean reconnect()
             throws RemoteException {
@@ -7,7 +7,7 @@ import transaction.InvalidIndexException;
  * @Date 2019/7/19
  * @Time 15:09
  */
-public class Car extends ResourceItem {
+public class Car extends ResourceItem implements EscrowItem {
     private String location;
     private int price; // every car has the same price
     private int numCars;
@@ -51,6 +51,10 @@ public class Car extends ResourceItem {
         this.numAvail += num;
     }
 
+    public void addAvail(int delta) {
+        this.numAvail += delta;
+    }
+
     public void addCars(int num) {
         this.numCars += num;
         this.numAvail += num;
@@ -66,6 +70,14 @@ public class Car extends ResourceItem {
         return null;
     }
 
+    // price on its own, the counts in the inventory group
+    private static final String[] COLUMN_GROUPS = {GROUP_PRICE, GROUP_INVENTORY};
+
+    @Override
+    public String[] getColumnGroups() {
+        return COLUMN_GROUPS;
+    }
+
     @Override
     public Object getKey() {
         return location;
@@ -0,0 +1,43 @@
+package transaction.entity;
+
+import java.io.Serializable;
+
+/**
+ * The lock row of one column group of an item (see
+ * ResourceItem.getColumnGroups()): the item key and the group name.
+ */
+public class ColumnGroupKey implements Serializable {
+    protected Object key;
+
+    protected String group;
+
+    public ColumnGroupKey(Object key, String group) {
+        this.key = key;
+        this.group = group;
+    }
+
+    public Object getKey() {
+        return key;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    public boolean equals(Object o) {
+        if (o == null || !(o instanceof ColumnGroupKey))
+            return false;
+        if (this == o)
+            return true;
+        ColumnGroupKey k = (ColumnGroupKey) o;
+        return k.key.equals(key) && k.group.equals(group);
+    }
+
+    public int hashCode() {
+        return key.hashCode() * 31 + group.hashCode();
+    }
+
+    public String toString() {
+        return key + "#" + group;
+    }
+}
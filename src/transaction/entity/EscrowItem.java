@@ -0,0 +1,12 @@
+package transaction.entity;
+
+/**
+ * An item whose number of available units transactions may change by
+ * escrow operations (see ResourceManager.escrow()): deltas that commute
+ * with each other, applied when the transaction commits.
+ */
+public interface EscrowItem {
+    public int getNumAvail();
+
+    public void addAvail(int delta);
+}
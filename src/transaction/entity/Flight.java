@@ -7,7 +7,7 @@ import transaction.InvalidIndexException;
  * @Date 2019/7/19
  * @Time 14:46
  */
-public class Flight extends ResourceItem {
+public class Flight extends ResourceItem implements EscrowItem {
     private String flightNum;
     private int price; // every seat has the same price
     private int numSeats;
@@ -51,6 +51,10 @@ public class Flight extends ResourceItem {
         this.numAvail += num;
     }
 
+    public void addAvail(int delta) {
+        this.numAvail += delta;
+    }
+
     public void addSeats(int numSeats) {
         this.numSeats += numSeats;
         this.numAvail += numSeats;
@@ -61,6 +65,14 @@ public class Flight extends ResourceItem {
         throw new InvalidIndexException(indexName);
     }
 
+    // price on its own, the counts in the inventory group
+    private static final String[] COLUMN_GROUPS = {GROUP_PRICE, GROUP_INVENTORY};
+
+    @Override
+    public String[] getColumnGroups() {
+        return COLUMN_GROUPS;
+    }
+
     @Override
     public Object getKey() {
         return flightNum;
@@ -7,7 +7,7 @@ import transaction.InvalidIndexException;
  * @Date 2019/7/19
  * @Time 14:53
  */
-public class Hotel extends ResourceItem {
+public class Hotel extends ResourceItem implements EscrowItem {
     private String location; // key, there is only one hotel at a location
     private int price; // every room has the same price
     private int numRooms;
@@ -32,6 +32,10 @@ public class Hotel extends ResourceItem {
         throw new InvalidIndexException(indexName);
     }
 
+    public void addAvail(int delta) {
+        this.numAvail += delta;
+    }
+
     public void addRooms(int num) {
         this.numRooms += num;
         this.numAvail += num;
@@ -60,6 +64,14 @@ public class Hotel extends ResourceItem {
         this.price = price;
     }
 
+    // price on its own, the counts in the inventory group
+    private static final String[] COLUMN_GROUPS = {GROUP_PRICE, GROUP_INVENTORY};
+
+    @Override
+    public String[] getColumnGroups() {
+        return COLUMN_GROUPS;
+    }
+
     @Override
     public Object getKey() {
         return location;
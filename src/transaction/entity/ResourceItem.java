@@ -13,6 +13,11 @@ import java.io.Serializable;
  * <p>
  */
 public abstract class ResourceItem implements Cloneable, Serializable {
+    /* column groups, see getColumnGroups() */
+    public static final String GROUP_PRICE = "price";
+
+    public static final String GROUP_INVENTORY = "inventory";
+
     protected boolean isdeleted = false;
 
     public abstract Object getIndex(String indexName) throws InvalidIndexException;
@@ -27,5 +32,15 @@ public abstract class ResourceItem implements Cloneable, Serializable {
         isdeleted = true;
     }
 
+    /**
+     * Returns the column groups of the item, locked apart from each other:
+     * a transaction reading or writing only the fields of one group does
+     * not conflict with transactions using the others. Locking the whole
+     * item locks every group. null if the item is locked as one.
+     */
+    public String[] getColumnGroups() {
+        return null;
+    }
+
     public abstract Object clone();
-}
\ No newline at end of file
+}